@@ -0,0 +1,317 @@
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Batch
+ * Runs a list of reads and writes against one server, several at a time, and prints how fast they went overall.
+ * <p>
+ * Each of the parallel sessions takes the next operation off a shared queue whenever it finishes one, and runs it on
+ * a Client of its own, with its own socket and transfer state.  A failed transfer is counted, and its session carries
+ * on with the next.
+ * <p>
+ * Operations come from a manifest, one per line: R or W followed by the name of the file, with # starting a comment.
+ * A directory can also be pushed, which writes every file in it except the ones that haven't changed since they were
+ * last pushed.  The size and modification time of each file pushed are kept in .tftpsync in the directory.  TFTP has
+ * no way to list the files on the server, so reading a whole directory needs a manifest naming the files.
+ * <p>
+ * Arguments:
+ * -manifest <file> runs the operations listed in the file, on files in -dir
+ * -push <dir> writes the files in the directory which changed since they were last pushed
+ * -dir <dir> where the files of the manifest are read from and written to, default ./Client/
+ * -server <host> and -port <port> of the server, default this host and 69
+ * -parallel <sessions> how many transfers run at once, default 4
+ * -blksize <bytes>, -windowsize <blocks> and -timeout <seconds> options to request, default none
+ */
+public class Batch {
+	private static final String stateFile = ".tftpsync";
+
+	private InetAddress server;
+	private int port, parallel, blksize, windowsize, timeout;
+	private ArrayList<Op> ops;
+	// The directory pushed and what was in it when it was last pushed, as "size mtime" by file name.
+	private String pushDir;
+	private TreeMap<String, String> state;
+	private int skipped;
+	private long nanos;
+	private AtomicLong retransmits;
+
+	/**
+	 * @param server The address of the server.
+	 * @param port The port the server listens for requests on.
+	 * @param parallel The most transfers to run at once.
+	 */
+	public Batch(InetAddress server, int port, int parallel) {
+		this.server = server;
+		this.port = port;
+		this.parallel = Math.max(1, parallel);
+
+		blksize = 512;
+		windowsize = 1;
+		timeout = 0;
+		ops = new ArrayList<Op>();
+		retransmits = new AtomicLong();
+	}
+
+	/**
+	 * Sets the options every session requests.
+	 * @param blksize The block size, 512 for no option.
+	 * @param windowsize The window size, 1 for no option.
+	 * @param timeout The timeout in seconds, 0 for no option.
+	 */
+	public void requestOptions(int blksize, int windowsize, int timeout) {
+		this.blksize = blksize;
+		this.windowsize = windowsize;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Adds a transfer to the batch.
+	 * @param write True to write the file to the server, false to read it.
+	 * @param dir The local directory of the file, ending in /.
+	 * @param file The name of the file.
+	 */
+	public void add(boolean write, String dir, String file) {
+		ops.add(new Op(write, dir, file, null));
+	}
+
+	/**
+	 * Adds the transfers listed in a manifest.  Lines which can't be read are reported and skipped.
+	 * @param manifest The manifest file.
+	 * @param dir The local directory of the files, ending in /.
+	 * @throws IOException If the manifest can't be read.
+	 */
+	public void load(String manifest, String dir) throws IOException {
+		String line;
+		String[] fields;
+		int number = 0;
+
+		try (BufferedReader in = new BufferedReader(new FileReader(manifest))) {
+			while ((line = in.readLine()) != null) {
+				number++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) continue;
+
+				fields = line.split("\\s+", 2);
+				if (fields.length == 2 && fields[0].equalsIgnoreCase("r")) add(false, dir, fields[1]);
+				else if (fields.length == 2 && fields[0].equalsIgnoreCase("w")) add(true, dir, fields[1]);
+				else System.out.println("Ignoring line " + number + " of " + manifest + ": " + line);
+			}
+		}
+	}
+
+	/**
+	 * Adds a write for every file in the directory which has changed since it was last pushed.  Hidden files and
+	 * subdirectories are left out.
+	 * @param dir The directory, ending in /.
+	 * @throws IOException If the record of the last push can't be read.
+	 */
+	public void push(String dir) throws IOException {
+		File[] files = new File(dir).listFiles();
+
+		if (files == null) throw new FileNotFoundException(dir + " is not a directory.");
+
+		pushDir = dir;
+		state = readState(dir);
+
+		Arrays.sort(files);
+		for (File file : files) {
+			if (!file.isFile() || file.getName().startsWith(".")) continue;
+
+			String stamp = file.length() + " " + file.lastModified();
+			if (stamp.equals(state.get(file.getName()))) skipped++;
+			else ops.add(new Op(true, dir, file.getName(), stamp));
+		}
+	}
+
+	/**
+	 * Runs every transfer added, and waits for them all to finish.  Then records the files pushed, if a directory
+	 * was pushed.
+	 * @throws InterruptedException If interrupted while waiting.
+	 * @throws IOException If the record of the push can't be written.
+	 */
+	public void run() throws InterruptedException, IOException {
+		ConcurrentLinkedQueue<Op> queue = new ConcurrentLinkedQueue<Op>(ops);
+		Thread[] sessions = new Thread[Math.min(parallel, ops.size())];
+		long start = System.nanoTime();
+
+		for (int i = 0; i < sessions.length; i++) {
+			sessions[i] = new Thread(() -> session(queue), "session-" + i);
+			sessions[i].start();
+		}
+		for (Thread session : sessions) session.join();
+
+		nanos = System.nanoTime() - start;
+
+		if (pushDir == null) return;
+		for (Op op : ops) if (op.done && op.stamp != null) state.put(op.file, op.stamp);
+		writeState(pushDir, state);
+	}
+
+	/**
+	 * Runs on a session thread.  Runs transfers off the queue one after another until it's empty.
+	 * <p>
+	 * Every transfer gets a client of its own, and so a new port, as RFC 1350 has it.  Packets the server sends late
+	 * in one transfer would otherwise be taken as the answer to the next request.
+	 */
+	private void session(Queue<Op> queue) {
+		Op op;
+
+		while ((op = queue.poll()) != null) {
+			Client client = new Client(server, port);
+			long start;
+
+			client.requestOptions(blksize, windowsize, timeout);
+			client.setDir(op.dir);
+			start = System.nanoTime();
+
+			try {
+				if (op.write) client.write(op.file);
+				else client.read(op.file);
+				op.done = true;
+			} catch (Client.TransferFailed e) {
+				// The reason has been printed, and the client has closed its socket.
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			op.nanos = System.nanoTime() - start;
+			op.bytes = new File(op.dir + op.file).length();
+			retransmits.addAndGet(client.getRetransmits());
+			if (op.done) client.close();
+		}
+	}
+
+	/**
+	 * @return True if any transfer failed.
+	 */
+	public boolean failed() {
+		for (Op op : ops) if (!op.done) return true;
+		return false;
+	}
+
+	/**
+	 * Prints how many transfers succeeded, the data moved and the overall throughput, the slowest transfer and the
+	 * transfers that failed.
+	 */
+	public void printSummary() {
+		int done = 0;
+		long bytes = 0;
+		double seconds = nanos / 1e9;
+		Op slowest = null;
+		StringBuilder failures = new StringBuilder();
+
+		for (Op op : ops) {
+			if (op.done) {
+				done++;
+				bytes += op.bytes;
+				if (slowest == null || op.nanos > slowest.nanos) slowest = op;
+			} else {
+				failures.append(' ').append(op.write ? "W " : "R ").append(op.file);
+			}
+		}
+
+		System.out.println("Transfers: " + done + " done, " + (ops.size() - done) + " failed, " + skipped + " unchanged");
+		System.out.printf("Bytes: %d in %.3f s, %.3f MB/s over %d sessions%n", bytes, seconds,
+				seconds > 0 ? bytes / seconds / 1e6 : 0, Math.min(parallel, ops.size()));
+		System.out.println("Retransmits: " + retransmits.get());
+		if (slowest != null) System.out.printf("Slowest: %s (%.3f s)%n", slowest.file, slowest.nanos / 1e9);
+		if (failures.length() > 0) System.out.println("Failed:" + failures);
+	}
+
+	/**
+	 * Reads the record of the last push of a directory.  A directory never pushed has an empty record.
+	 */
+	private static TreeMap<String, String> readState(String dir) throws IOException {
+		TreeMap<String, String> state = new TreeMap<String, String>();
+		File file = new File(dir + stateFile);
+		String line;
+
+		if (!file.isFile()) return state;
+
+		try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+			// Each line is the size, the modification time and the name of a file, separated by tabs.
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split("\t", 3);
+				if (fields.length == 3) state.put(fields[2], fields[0] + " " + fields[1]);
+			}
+		}
+
+		return state;
+	}
+
+	private static void writeState(String dir, Map<String, String> state) throws IOException {
+		try (PrintWriter out = new PrintWriter(dir + stateFile)) {
+			for (Map.Entry<String, String> entry : state.entrySet()) {
+				out.println(entry.getValue().replace(' ', '\t') + "\t" + entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Op
+	 * One transfer of the batch, and how it went.
+	 */
+	private static class Op {
+		private final boolean write;
+		private final String dir, file;
+		// The size and modification time of a file being pushed, recorded once it has been written.
+		private final String stamp;
+		private volatile boolean done;
+		private volatile long bytes, nanos;
+
+		public Op(boolean write, String dir, String file, String stamp) {
+			this.write = write;
+			this.dir = dir;
+			this.file = file;
+			this.stamp = stamp;
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String manifest = null, push = null, dir = "./Client/", host = null;
+		int port = 69, parallel = 4, blksize = 512, windowsize = 1, timeout = 0;
+
+		for (int i = 0; i < args.length - 1; i++) {
+			if (args[i].equals("-manifest")) manifest = args[++i];
+			else if (args[i].equals("-push")) push = args[++i];
+			else if (args[i].equals("-dir")) dir = args[++i];
+			else if (args[i].equals("-server")) host = args[++i];
+			else if (args[i].equals("-port")) port = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-parallel")) parallel = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-blksize")) blksize = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-windowsize")) windowsize = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-timeout")) timeout = Integer.parseInt(args[++i]);
+		}
+
+		if (manifest == null && push == null) {
+			System.out.println("Nothing to do.  Give a -manifest <file> and/or a directory to -push <dir>.");
+			return;
+		}
+
+		if (!dir.endsWith("/")) dir = dir + "/";
+		if (push != null && !push.endsWith("/")) push = push + "/";
+
+		Batch batch = new Batch(host == null ? InetAddress.getLocalHost() : InetAddress.getByName(host), port, parallel);
+		batch.requestOptions(blksize, windowsize, timeout);
+		if (manifest != null) batch.load(manifest, dir);
+		if (push != null) batch.push(push);
+
+		batch.run();
+		Log.flush();
+		batch.printSummary();
+		System.exit(batch.failed() ? 1 : 0);
+	}
+}
@@ -0,0 +1,228 @@
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BlockCache
+ * The block cache keeps the contents of recently read files in memory, so a file served to many clients is only
+ * read from disk once.
+ * <p>
+ * Files are looked up by path, and an entry is only used while the file's modification time and size still match
+ * it; a file which has changed is read in again.  The least recently used files are evicted to stay within the
+ * memory cap.  Files larger than a quarter of the cap are never cached, so one large file can't push out all others.
+ * <p>
+ * Contents are kept on the heap, or in direct buffers outside it so a large cache doesn't add to garbage collection.
+ * <p>
+ * A file is only read in once at a time.  Lookups which miss while it is being read wait for that read instead of
+ * starting their own.
+ */
+public class BlockCache {
+	private static final ExecutorService loader = Executors.newCachedThreadPool(task -> {
+		Thread thread = new Thread(task, "cache-load");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final LinkedHashMap<String, Entry> entries;
+	// The files being read in, by path.
+	private final HashMap<String, CompletableFuture<Entry>> loading;
+	private final long capacity;
+	private final boolean direct;
+	private final AtomicLong hits, misses, evictions;
+	private long size;
+
+	/**
+	 * Constructor for the BlockCache class
+	 * @param capacity The most file data to keep in memory, in bytes.
+	 * @param direct If true, file contents are kept in direct buffers instead of on the heap.
+	 */
+	public BlockCache(long capacity, boolean direct) {
+		this.capacity = capacity;
+		this.direct = direct;
+
+		// Iterates from the least recently used entry.
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		loading = new HashMap<String, CompletableFuture<Entry>>();
+
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		evictions = new AtomicLong();
+	}
+
+	/**
+	 * Looks up the contents of a file, reading it in on the calling thread if it isn't cached yet.
+	 * @param filename The path of the file.
+	 * @return A read-only buffer over the whole file, or null if the file can't be cached and has to be read from disk.
+	 */
+	public ByteBuffer get(String filename) {
+		return lookup(filename, Runnable::run).join();
+	}
+
+	/**
+	 * Looks up the contents of a file without blocking.  A file which isn't cached yet is read in on a thread of the
+	 * cache's own.
+	 * @param filename The path of the file.
+	 * @return The contents as get returns them, once they are in memory.
+	 */
+	public CompletableFuture<ByteBuffer> lookup(String filename) {
+		return lookup(filename, loader);
+	}
+
+	/**
+	 * Looks up the contents of a file, joining the read already under way if there is one.
+	 * @param filename The path of the file.
+	 * @param reader Where the file is read in, if this lookup is the one to read it.
+	 */
+	private CompletableFuture<ByteBuffer> lookup(String filename, Executor reader) {
+		File f = new File(filename);
+		String key;
+		long modified, length;
+		Entry entry;
+		CompletableFuture<Entry> pending;
+		boolean first = false;
+
+		try {
+			if (!f.isFile()) return CompletableFuture.completedFuture(null);
+			key = f.getAbsolutePath();
+			modified = f.lastModified();
+			length = f.length();
+		} catch (SecurityException e) {
+			return CompletableFuture.completedFuture(null);
+		}
+
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry != null && entry.modified == modified && entry.length == length) {
+				hits.incrementAndGet();
+				return CompletableFuture.completedFuture(entry.data.duplicate());
+			}
+
+			misses.incrementAndGet();
+			if (length > capacity / 4 || length > Integer.MAX_VALUE) return CompletableFuture.completedFuture(null);
+
+			pending = loading.get(key);
+			if (pending == null) {
+				pending = new CompletableFuture<Entry>();
+				loading.put(key, pending);
+				first = true;
+			}
+		}
+
+		// Whatever happens to the read, the lookups waiting on it are let go.
+		if (first) {
+			CompletableFuture<Entry> load = pending;
+			reader.execute(() -> {
+				Entry loaded = null;
+
+				try {
+					loaded = load(f, modified, length);
+				} finally {
+					load.complete(add(key, loaded));
+				}
+			});
+		}
+
+		return pending.thenApply(loaded -> loaded == null ? null : loaded.data.duplicate());
+	}
+
+	/**
+	 * Puts a file which has been read in into the cache, evicting the least recently used files to make room.
+	 * @param key The absolute path of the file.
+	 * @param entry The file's contents, or null if it couldn't be read.
+	 * @return The entry.
+	 */
+	private synchronized Entry add(String key, Entry entry) {
+		loading.remove(key);
+		if (entry == null) return null;
+
+		Entry old = entries.put(key, entry);
+		if (old != null) size -= old.length;
+		size += entry.length;
+
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (size > capacity && it.hasNext()) {
+			Entry lru = it.next().getValue();
+			if (lru == entry) continue;
+			size -= lru.length;
+			it.remove();
+			evictions.incrementAndGet();
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Drops a file from the cache, e.g. because it is being written to.
+	 * @param filename The path of the file.
+	 */
+	public synchronized void invalidate(String filename) {
+		Entry old = entries.remove(new File(filename).getAbsolutePath());
+		if (old != null) size -= old.length;
+	}
+
+	/**
+	 * Reads a whole file into memory.
+	 * @return The new entry, or null if the file could not be read or changed size while reading.
+	 */
+	private Entry load(File f, long modified, long length) {
+		ByteBuffer data = direct ? ByteBuffer.allocateDirect((int)length) : ByteBuffer.allocate((int)length);
+
+		try (FileChannel in = new FileInputStream(f).getChannel()) {
+			while (data.hasRemaining() && in.read(data) != -1);
+			if (data.hasRemaining() || in.size() != length) return null;
+		} catch (IOException | SecurityException e) {
+			return null;
+		}
+
+		data.flip();
+		return new Entry(data.asReadOnlyBuffer(), modified, length);
+	}
+
+	/**
+	 * Prints the cache's hit, miss and eviction counts and how full it is.
+	 */
+	public void printStats() {
+		int count;
+		long used;
+
+		synchronized (this) {
+			count = entries.size();
+			used = size;
+		}
+
+		System.out.print("Cache hits: "); System.out.print(hits.get());
+		System.out.print("    Misses: "); System.out.print(misses.get());
+		System.out.print("    Evictions: "); System.out.println(evictions.get());
+		System.out.print("Cached files: "); System.out.print(count);
+		System.out.print("    Memory: "); System.out.print(used / 1024);
+		System.out.print(" / "); System.out.print(capacity / 1024);
+		System.out.println(direct ? " KB (off-heap)" : " KB");
+	}
+
+	/**
+	 * Entry
+	 * The contents of a cached file, and the modification time and size it had when it was read.
+	 */
+	private static class Entry {
+		private final ByteBuffer data;
+		private final long modified, length;
+
+		public Entry(ByteBuffer data, long modified, long length) {
+			this.data = data;
+			this.modified = modified;
+			this.length = length;
+		}
+	}
+}
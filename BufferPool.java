@@ -0,0 +1,59 @@
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * BufferPool
+ * The buffer pool hands out packet buffers and takes them back when a transfer ends, so that starting transfers
+ * doesn't allocate new buffers once the pool has warmed up.
+ * <p>
+ * Buffers are kept in size classes of powers of two, from 512 bytes up to the largest packet TFTP allows.  A buffer
+ * may be larger than the size asked for.  Each class keeps at most a fixed number of free buffers.
+ */
+public class BufferPool {
+	private static final int minShift = 9;
+	private static final int maxShift = 16;
+	private static final int maxFree = 64;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static final ConcurrentLinkedQueue<byte[]>[] free = new ConcurrentLinkedQueue[maxShift - minShift + 1];
+
+	static {
+		for (int i = 0; i < free.length; i++) free[i] = new ConcurrentLinkedQueue<byte[]>();
+	}
+
+	/**
+	 * Takes a buffer out of the pool, or allocates one if none is free.
+	 * @param size The smallest size the buffer may have.
+	 * @return A buffer of at least size bytes.  Its contents are undefined.
+	 */
+	public static byte[] acquire(int size) {
+		int c = sizeClass(size);
+		byte[] buf;
+
+		if (c < 0) return new byte[size];
+
+		buf = free[c].poll();
+		return buf != null ? buf : new byte[1 << (c + minShift)];
+	}
+
+	/**
+	 * Returns a buffer to the pool.  The buffer must not be used afterwards.
+	 * @param buf A buffer from acquire.
+	 */
+	public static void release(byte[] buf) {
+		int c = sizeClass(buf.length);
+
+		// Only buffers of exactly a class's size are pooled, so every pooled buffer is big enough for its class.
+		if (c < 0 || buf.length != 1 << (c + minShift) || free[c].size() >= maxFree) return;
+		free[c].offer(buf);
+	}
+
+	/**
+	 * @return The index of the smallest size class holding size bytes, or -1 if it's too large to be pooled.
+	 */
+	private static int sizeClass(int size) {
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+		shift = Math.max(shift, minShift);
+		return shift > maxShift ? -1 : shift - minShift;
+	}
+}
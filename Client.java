@@ -1,45 +1,89 @@
 
 import java.net.DatagramSocket;
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Client {
 	private static final byte readReq = 0x01;
 	private static final byte writeReq = 0x02;
 	private static final int timeout_ms = 500;
+	// How many times a request is sent again before the server is given up on.
+	private static final int requestRetries = 5;
+	private static final int defaultBlksize = 512;
+	private static final int minBlksize = 8;
+	private static final int maxBlksize = 65464;
+	private static final int maxWindowsize = 65535;
+	private static final int maxSegments = 64;
 	private static final String mode = "octet";
 	private static final String error4 = "Error 4: Illegal TFTP operation";
 	private static final String badTID = "Invalid TID";
 	private static final String defaultDir = "./Client/";
 
-	private byte[] rData;
+	private byte[] rData, aData;
 
 	private DatagramSocket sock;
-	private DatagramPacket sndPkt, rcvPkt;
+	private DatagramPacket sndPkt, rcvPkt, ackPkt;
 	private InetAddress target;
 
-	private int port, TID;
-	private boolean test, verbose;
+	private int port, TID, serverPort, reqBlksize, blksize, reqWindowsize, windowsize, reqTimeout, timeout;
+	// The block number after 65535 to ask for (-1 to leave the option out), and the one in use.
+	private int reqRollover, rollover;
+	private long retransmits, syncPolicy;
+	// The size of the file being transferred: announced by the client for a write, told by the server for a read.
+	private long tsize;
+	// The part of the file a read asks for, with a length of -1 for all of it, and how many parts to split reads into.
+	private long rangeOffset, rangeLength;
+	private int segments;
+	private boolean test, console;
 	
 	private String dir;
 
 	public Client() throws UnknownHostException, SocketException {
-		target = InetAddress.getLocalHost();
+		this(InetAddress.getLocalHost(), 69);
+
+		console = true;
+		new UI().start();
+	}
+
+	/**
+	 * Constructor for a client without a console, e.g. to run inside another program.
+	 * @param target The address of the server.
+	 * @param serverPort The port the server listens for requests on.
+	 */
+	Client(InetAddress target, int serverPort) {
+		this.target = target;
+		this.serverPort = serverPort;
 
 		test = false;
-		verbose = false;
 	
 		dir = defaultDir;
+		aData = new byte[PacketCodec.HEADER];
+		reqBlksize = defaultBlksize;
+		blksize = defaultBlksize;
+		reqWindowsize = 1;
+		windowsize = 1;
+		reqTimeout = 0;
+		timeout = 0;
+		reqRollover = -1;
+		rollover = 0;
+		rangeLength = -1;
+		segments = 1;
+		syncPolicy = WriteBehind.NONE;
 
 		try {
 			sock = new DatagramSocket();
@@ -47,8 +91,6 @@ public class Client {
 			e.printStackTrace();
 			System.exit(-1);
 		}
-
-		new UI().start();
 	}
 
 	/**
@@ -78,8 +120,16 @@ public class Client {
 	 * Note that this function should never be called until after createPkt has been called.
 	 */
 	private void send() {
+		send(sndPkt);
+	}
+
+	/**
+	 * Send the given packet from sock.
+	 * @param pkt
+	 */
+	private void send(DatagramPacket pkt) {
 		try {
-			sock.send(sndPkt);
+			sock.send(pkt);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -89,8 +139,16 @@ public class Client {
 	 * Receive from sock into rcvPkt.
 	 */
 	private void receive() throws SocketTimeoutException {
-		rData = new byte[516];
-		rcvPkt = new DatagramPacket(rData, 516);
+		// Large enough for a full block whether or not the server takes up the requested block size.  The buffer is
+		// only replaced when a larger block size has been requested since, so receiving a block doesn't allocate.
+		int size = Math.max(reqBlksize, defaultBlksize) + 4;
+		
+		if (rData == null || rData.length < size) {
+			if (rData != null) BufferPool.release(rData);
+			rData = BufferPool.acquire(size);
+			rcvPkt = new DatagramPacket(rData, size);
+		}
+		rcvPkt.setLength(size);
 
 		try {
 			sock.receive(rcvPkt);
@@ -104,81 +162,192 @@ public class Client {
 		}
 	}
 	
-	private void writeReceive() {
-		boolean success = false;
-		
-		while (!success) {
+	/**
+	 * Waits for the answer to the request in sndPkt, sending the request again each time the socket's timeout runs
+	 * out.  A server which hasn't answered after requestRetries of them ends the transfer.
+	 */
+	private void requestReceive() {
+		for (int tries = 0; ; tries++) {
 			try {
 				receive();
-				success = true;
+				return;
 			} catch (SocketTimeoutException e) {
-				if (verbose) System.out.println("Receive timed out.  Retransmitting.");
+				if (tries == requestRetries) {
+					System.out.println("Server stopped responding.");
+					quit();
+				}
+				
+				Log.debug("Receive timed out.  Retransmitting.");
 				send();
-				success = false;
+				retransmits++;
 			}
 		}
 	}
 
 	/**
 	 * Closes the socket and exits.
+	 * <p>
+	 * A client without a console only abandons the transfer in progress, by throwing TransferFailed, so that the
+	 * program running it can carry on.  The client can't be used afterwards.
 	 */
 	private void quit() {
-		if (verbose) System.out.println("Closing sock");
+		Log.debug("Closing sock");
 		sock.close();
+		if (!console) throw new TransferFailed();
+		Log.flush();
 		System.out.println("Exiting");
 		System.exit(0);
 	}
 
 	/**
-	 * Generates an error message.
-	 * <p>
-	 * Builds an error message of the format:
-	 * {0x00, 0x05, 0x00, type, errorMsg}
+	 * Sends an error, built with PacketCodec in a pooled buffer.
 	 * @param type Which error condition is present.
-	 * @param errorMsg A more detailed message describing the error. 
-	 * @return A byte array containing the error.
+	 * @param errorMsg A more detailed message describing the error.
+	 * @param address Where to send it.
+	 * @param to The port to send it to.
+	 */
+	private void error(byte type, String errorMsg, InetAddress address, int to) {
+		byte[] msg = BufferPool.acquire(PacketCodec.HEADER + errorMsg.length() + 1);
+
+		send(new DatagramPacket(msg, PacketCodec.putError(msg, type, errorMsg), address, to));
+		BufferPool.release(msg);
+	}
+
+	/**
+	 * Reads the options the server accepted out of an OACK, and sets up the transfer to use them.
+	 * <p>
+	 * Should not be called unless rcvPkt holds an OACK.
+	 * @return False if the server answered with an option or value that was never requested.
 	 */
-	public byte[] createErrorMsg(byte type, byte[] errorMsg) {
-		byte msg[] = new byte[errorMsg.length + 5];
+	private boolean parseOACK() {
+		byte[] data = rcvPkt.getData();
+		int i = 2, j;
+		String name, value;
+		boolean sized = false, ranged = false;
+
+		while (i < rcvPkt.getLength()) {
+			j = i;
+			while (i < rcvPkt.getLength() && data[i] != 0x00) i++;
+			name = new String(data, j, i - j).toLowerCase();
+
+			j = ++i;
+			while (i < rcvPkt.getLength() && data[i] != 0x00) i++;
+			value = new String(data, j, i++ - j);
+
+			Log.debug("Option {} = {}", name, value);
+
+			if (name.equals("blksize")) {
+				try {
+					blksize = Integer.parseInt(value);
+				} catch (NumberFormatException e) {
+					return false;
+				}
+				// The server may lower the block size, but never raise it.
+				if (blksize < minBlksize || blksize > reqBlksize) return false;
+			} else if (name.equals("windowsize")) {
+				try {
+					windowsize = Integer.parseInt(value);
+				} catch (NumberFormatException e) {
+					return false;
+				}
+				// Likewise for the window size.
+				if (windowsize < 1 || windowsize > reqWindowsize) return false;
+			} else if (name.equals("timeout")) {
+				// The server must use the timeout asked for, or leave it out.
+				if (!value.equals(Integer.toString(reqTimeout))) return false;
+				timeout = reqTimeout;
+			} else if (name.equals("tsize")) {
+				long size;
+
+				try {
+					size = Long.parseLong(value);
+				} catch (NumberFormatException e) {
+					return false;
+				}
+				// A write's size comes back as it was sent.  A read asks with 0 and is told the size of the file.
+				if (size < 0 || (tsize != 0 && size != tsize)) return false;
+				tsize = size;
+				sized = true;
+			} else if (name.equals("rollover")) {
+				// Likewise for the rollover.
+				if (!value.equals(Integer.toString(reqRollover))) return false;
+				rollover = reqRollover;
+			} else if (name.equals("range")) {
+				long[] range = PacketCodec.range(value);
+
+				// The server may cut the range short at the end of the file, but not move it.
+				if (rangeLength < 0 || range == null || range[0] != rangeOffset || range[1] > rangeLength) return false;
+				rangeLength = range[1];
+				ranged = true;
+			} else {
+				return false;
+			}
+		}
+
+		// Reading part of a file needs the server to agree to the range, and to say how big the whole file is.
+		return rangeLength < 0 || (ranged && sized);
+	}
 
-		msg[0] = 0x00;
-		msg[1] = 0x05;
-		msg[2] = 0x00;
-		msg[3] = type;
+	/**
+	 * Ends a transfer whose OACK could not be accepted, telling the server why.
+	 */
+	private void rejectOACK() {
+		error((byte)8, "Option negotiation failed", target, port);
 
-		System.arraycopy(errorMsg, 0, msg, 4, errorMsg.length);
+		System.out.println("The server answered with options that could not be accepted.");
+		quit();
+	}
 
-		msg[msg.length - 1] = 0x00;
+	/**
+	 * Ends a read of a file which is too big for the client directory, telling the server why.
+	 */
+	private void rejectSize() {
+		error((byte)3, "Disk full or allocation exceeded", target, port);
 
-		return msg;
+		System.out.println("There is not enough space for the file, which is " + tsize + " bytes.");
+		quit();
 	}
 
 	/**
-	 * Starts a write operation. Reads from a local file and writes to the server across the network.
+	 * Prompts for a file and writes it to the server.
 	 * @throws IOException
 	 */
 	private void startWrite() throws IOException {
-		int sizeRead, recBlock;
-		boolean success;
-
-		String file = pickFile();
+		write(pickFile());
+	}
 
-		// Holds the block number. Since this is a write operation, the lowest block number the client uses is 01.
-		byte[] block = {0x00, 0x01};
-		// Holds the opcode.  This never changes, and is here for convenience (can be copied in with arraycopy).
-		byte[] opcode = {0x00, 0x03};
+	/**
+	 * Starts a write operation. Reads from a local file and writes to the server across the network.
+	 * <p>
+	 * Up to windowsize blocks are sent before waiting for an acknowledge.  The server acknowledges the last block of
+	 * the window, or the last block it received in order if one went missing, and the next window starts from the
+	 * block after that.
+	 * @param file The name of the file, in the client directory and on the server.
+	 * @throws IOException
+	 */
+	void write(String file) throws IOException {
+		int sizeRead, acked, n;
+		DatagramPacket[] window;
+		// The next block to read from the file, the first block not yet acknowledged and the final block.
+		int next = 1, base = 1, end = -1;
+		// The first block of the window last sent again because an acknowledge showed a block missing.
+		int resent = 0;
+		boolean fresh = true;
+		RetransmitTimer timer;
+
+		tsize = new File(dir + file).length();
+		rangeLength = -1;
 		byte[] request = buildRQ(file, writeReq);
-		byte[] data = new byte[512];
 
 		// Opens the file selected for reading.
-		if (verbose) System.out.println("Opening file.");
+		Log.debug("Opening file.");
 		
 		BufferedInputStream in = null;
 		
 		sock.setSoTimeout(timeout_ms);
 		
 		try {
-			in = new BufferedInputStream(new FileInputStream("Client/" + file));
+			in = new BufferedInputStream(new FileInputStream(dir + file));
 		} catch (FileNotFoundException e) {
 			System.out.println("File name " + file + " could not be found. Please check spelling.");
 			quit();
@@ -187,15 +356,18 @@ public class Client {
 			quit();
 		}
 		// Build the WRQ packet from the request array.
-		if (verbose) System.out.println("Sending request.");
-		sndPkt = new DatagramPacket(request, request.length, target, test ? 23 : 69);
+		Log.debug("Sending request.");
+		blksize = defaultBlksize;
+		windowsize = 1;
+		timeout = 0;
+		rollover = 0;
+		sndPkt = new DatagramPacket(request, request.length, target, test ? 23 : serverPort);
 		send();
-		writeReceive();
+		requestReceive();
 		
-		if (rcvPkt.getData()[1] == (byte)0x05 && rcvPkt.getData()[3] == (byte)0x02) {
-			byte[] errMsg = new byte[rcvPkt.getLength() - 4];
-			System.arraycopy(rcvPkt.getData(), 4, errMsg, 0, errMsg.length);
-			System.out.println(new String(errMsg));
+		// An error in answer to the request means the transfer never started, so there's nothing to retry.
+		if (PacketCodec.opcode(rData) == PacketCodec.ERROR) {
+			printError();
 			quit();
 		}
 
@@ -204,187 +376,238 @@ public class Client {
 		target = rcvPkt.getAddress();
 		TID = port;
 		
-		if (verbose) {
-			System.out.print("Response received from ");
-			System.out.print(target.getHostAddress());
-			System.out.print(" on port ");
-			System.out.println(port);
-			System.out.print("Opcode ");
-			System.out.println(new Integer(rcvPkt.getData()[1]));
-			System.out.println(new String(rcvPkt.getData()));
-			System.out.println();
+		Log.debug("Response received from {} on port {}", target.getHostAddress(), port);
+		Log.debug("Opcode {}", PacketCodec.opcode(rData));
+		// The server accepted our options.  The OACK stands in for the acknowledge of block 0.
+		if (rcvPkt.getData()[1] == (byte)0x06 && !parseOACK()) rejectOACK();
+
+		// Adapt to the round trip time, unless the server agreed to a timeout of our own.
+		if (timeout > 0) timer = new RetransmitTimer(1000 * timeout, false);
+		else timer = new RetransmitTimer(timeout_ms, true);
+
+		window = new DatagramPacket[windowsize];
+		for (n = 0; n < windowsize; n++) {
+			window[n] = new DatagramPacket(BufferPool.acquire(blksize + 4), blksize + 4, target, port);
 		}
-		if(rcvPkt.getData()[1]==(byte)5) {
-			if (rcvPkt.getData()[3] == (byte)4) {
-				System.out.println("Illegal TFTP operation was requested.");
-				quit();
-			}
-		}
-		// Read in up to 512 bytes of data.
-		sizeRead = in.read(data);
 
-		if (verbose) System.out.println("Starting write.");
+		Log.debug("Starting write.");
 
 		/*
-		 * While the end of the file hasn't been reached:
-		 *   - Copy the opcode, block number, and data into a single array.
-		 *   - Put the array into a datagram packet.
-		 *   - Send the packet and wait for a response.
-		 *   - Increment the block number.
-		 *   - Read in a new set of data.
+		 * Until the final block has been acknowledged:
+		 *   - Read in the blocks of the window which haven't been read yet.
+		 *   - Send every block of the window.
+		 *   - Wait for the acknowledge, and move the window to the block after the one acknowledged.
+		 *     On a timeout, send the window again from the first unacknowledged block.
+		 * Round trips are only timed for windows sent for the first time.
 		 */
-		while (sizeRead != -1) {
-			success = false;
-			
-			request = new byte[4 + sizeRead];
-
-			System.arraycopy(opcode, 0, request, 0, 2);
-			System.arraycopy(block, 0, request, 2, 2);
-			System.arraycopy(data, 0, request, 4, sizeRead);
-
-			if (verbose) {
-				System.out.print("Sending ");
-				System.out.print(new String(request));
-				System.out.print(" to ");
-				System.out.println(port);
-				System.out.print("Opcode ");
-				System.out.println(new Integer(request[1]));
-				System.out.print("Block "); System.out.println(0xff & block[1] + 256 * (0xff & block[0]));
-				System.out.println();
-			}
+		while (end == -1 || base <= end) {
+			for (n = base; n < base + windowsize && (end == -1 || n <= end); n++) {
+				sndPkt = window[(n - 1) % windowsize];
 
-			sndPkt = new DatagramPacket(request, request.length, target, port);
+				if (n == next) {
+					sizeRead = in.read(sndPkt.getData(), 4, blksize);
+					if (sizeRead == -1) sizeRead = 0;
 
-			send();
+					PacketCodec.putData(sndPkt.getData(), PacketCodec.wireBlock(n, rollover));
+					sndPkt.setLength(sizeRead + 4);
 
-			while (!success) {
-				writeReceive();
-				if (rcvPkt.getData()[1] != (byte) 0x04 || (rcvPkt.getData()[3] == block[1] && rcvPkt.getData()[2] == block[0])) success = true;
-			}
+					// A short block ends the file.  This is an empty block if the file fills its last block exactly.
+					if (sizeRead < blksize) end = n;
+					next++;
+				}
+
+				Log.debug("Sending block {}, {} bytes", PacketCodec.wireBlock(n, rollover), sndPkt.getLength() - 4);
+				Log.payload(PacketCodec.wireBlock(n, rollover), sndPkt.getData(), 4, sndPkt.getLength() - 4);
 
-			if (verbose) {
-				System.out.println("Received packet");
-				System.out.print("Opcode ");
-				System.out.println(new Integer(rcvPkt.getData()[1]));
-				System.out.println(new String(rcvPkt.getData()));
-				System.out.print("Block "); System.out.println(0xff & rcvPkt.getData()[3] + 256 * (0xff & rcvPkt.getData()[2]));
-				System.out.println();
-			}
-			if(!(rcvPkt.getData()[1] == (byte)0x04 || rcvPkt.getData()[1] == (byte)0x05 )){
-				if (verbose) System.out.println(error4);
-				
-				byte[] errorData =createErrorMsg((byte)4, error4.getBytes());
-				sndPkt  = new DatagramPacket(errorData, errorData.length, rcvPkt.getAddress(), rcvPkt.getPort());
 				send();
-				quit();
 			}
-			if(rcvPkt.getPort() != TID) {
-				if (verbose) System.out.println(badTID);
-				
-				byte[] errorData =createErrorMsg((byte) 5, badTID.getBytes());
-				sndPkt = new DatagramPacket (errorData, errorData.length, target, port);
-				
-				send();
+
+			if (fresh) timer.sent();
+			else timer.resent();
+
+			sock.setSoTimeout(timer.getTimeout());
+			acked = ackReceive(base - 1, n - 1);
+
+			// A repeated acknowledge of the block before the window is left to the timer.  Answering each one with the
+			// whole window would double the traffic every time one was duplicated.  In a larger window the first one
+			// means a block went missing, so that window goes out again once.
+			while (acked == base - 1 && (windowsize == 1 || resent == base)) {
+				Log.debug("Ignoring repeated acknowledge for block {}", PacketCodec.wireBlock(acked, rollover));
+				acked = ackReceive(base - 1, n - 1);
 			}
+			if (acked == base - 1) resent = base;
 
-			if(rcvPkt.getData()[1]==(byte)5) {
-				if (rcvPkt.getData()[3] == (byte)4) {
-					System.out.println("Illegal TFTP operation was requested.");
+			if (acked == -1) {
+				if (!timer.timedOut()) {
+					System.out.println("Server stopped responding.");
 					quit();
 				}
-				if (rcvPkt.getData()[3]==(byte)5) {
-					System.out.println("Data sent to incorrect server, attempting to retransfer");
-					
-					if (verbose) {
-						System.out.print("Sending ");
-						System.out.print(new String(request));
-						System.out.print(" to ");
-						System.out.println(port);
-						System.out.print("Opcode ");
-						System.out.println(new Integer(request[1]));
-						System.out.println();
-					}
 
-					send();
-					
-					while (!success) {
-						writeReceive();
-						if (rcvPkt.getData()[1] != (byte) 0x04 || (rcvPkt.getData()[3] == block[1] && rcvPkt.getData()[2] == block[0])) success = true;
-					}
-					
-					if (verbose) {
-						System.out.println("Received packet");
-						System.out.print("Opcode ");
-						System.out.println(new Integer(rcvPkt.getData()[1]));
-						System.out.println(new String(rcvPkt.getData()));
-						System.out.println();
-					}
-				}
-					
-					 if (rcvPkt.getData()[3] == (byte)0x04) {
-						// Invalid TFTP operation. Unrecoverable by definition.
-						byte[] errorMsg = new byte[rcvPkt.getLength()];
-						
-						System.arraycopy(rcvPkt.getData(), 4, errorMsg, 0, rcvPkt.getLength() - 5);
-						
-						if (verbose) System.out.println("Error code 4, Invalid TFTP Operation");
-						System.out.println(new String(errorMsg));
-						
-						quit();
-					}
-					 if(rcvPkt.getData()[3] == (byte)1)
-					{
-						byte[] errorMsg = new byte[rcvPkt.getLength()];
-						
-						System.arraycopy(rcvPkt.getData(), 4, errorMsg, 0, rcvPkt.getLength() - 5);
-						if (verbose) System.out.println("Error code 1, file not found");
-						System.out.println(errorMsg);
-						quit();
-					}
-					if(rcvPkt.getData()[3] == (byte)3)
-						{
-							byte[] errorMsg = new byte[rcvPkt.getLength()];
-							
-							System.arraycopy(rcvPkt.getData(), 4, errorMsg, 0, rcvPkt.getLength() - 5);
-							if (verbose) System.out.println("Error code 3, disk full");
-							System.out.println(errorMsg);
-							quit();
-						}
-				}
-			
-
-			if (block[1]++ == (byte)0xff) block[0]++;
-
-			sizeRead = in.read(data);
-			
-			if (sndPkt.getLength() == 516 && sizeRead == -1) {
-				request = new byte[4]; request[0] = (byte)0; request[1] = (byte)3; request[2] = block[0]; request[3] = block[1];
-				sndPkt = new DatagramPacket(request, 4, target, port);
-				send();
+				Log.debug("Receive timed out.  Retransmitting.");
+				fresh = false;
+			} else {
+				// An acknowledge which doesn't move the window means the same window goes out again.
+				fresh = acked >= base;
+				if (fresh) timer.acked();
+				base = acked + 1;
 			}
+
+			if (!fresh) retransmits++;
 		}
 
 		in.close();
+		for (DatagramPacket packet : window) BufferPool.release(packet.getData());
 		System.out.println("Finished write.");
 	}
 
 	/**
-	 * Starts a read operation. Reads from the server and writes to a local file.
+	 * Waits for the server to acknowledge one of the blocks in the range given.
+	 * <p>
+	 * Packets from unknown sources are answered with an error, and acknowledges for blocks before the range
+	 * are skipped.  Errors from the server end the client.
+	 * @param first The earliest block which may be acknowledged.
+	 * @param last The latest block which may be acknowledged.
+	 * @return The block acknowledged, or -1 if the window should be sent again.
+	 */
+	private int ackReceive(int first, int last) {
+		int number;
+
+		while (true) {
+			try {
+				receive();
+			} catch (SocketTimeoutException e) {
+				return -1;
+			}
+
+			if (rcvPkt.getPort() != TID) {
+				rejectTID();
+				continue;
+			}
+
+			if (PacketCodec.opcode(rData) == PacketCodec.ACK) {
+				number = PacketCodec.block(rData);
+
+				Log.debug("Received acknowledge for block {}", number);
+
+				// Work out which of the blocks sent the 16 bit block number refers to.
+				number = PacketCodec.ackedBlock(last, number, rollover);
+				if (number >= first) return number;
+			} else if (PacketCodec.opcode(rData) == PacketCodec.ERROR) {
+				if (PacketCodec.block(rData) == 5) {
+					System.out.println("Data sent to incorrect server, attempting to retransfer");
+					return -1;
+				}
+
+				printError();
+				quit();
+			} else if (PacketCodec.opcode(rData) != PacketCodec.OACK) {
+				// Repeated OACKs are ignored, anything else doesn't belong in the transfer.
+				rejectOpcode();
+				quit();
+			}
+		}
+	}
+
+	/**
+	 * Prints the error packet received from the server.
+	 */
+	private void printError() {
+		switch (rcvPkt.getData()[3]) {
+			case 1: System.out.println("Could not find specified file on server.");
+				break;
+			case 3: System.out.println("Server disk full.");
+				break;
+			case 4: System.out.println("Illegal TFTP operation was requested.");
+				break;
+		}
+
+		Log.debug("Error code {}", PacketCodec.block(rData));
+		System.out.println(PacketCodec.errorMessage(rcvPkt.getData(), rcvPkt.getLength()));
+	}
+
+	/**
+	 * Answers a packet which came from an unknown source.
+	 */
+	private void rejectTID() {
+		Log.debug(badTID);
+
+		error((byte)5, badTID, rcvPkt.getAddress(), rcvPkt.getPort());
+	}
+
+	/**
+	 * Tells the server that it sent a packet which doesn't belong in the transfer.
+	 */
+	private void rejectOpcode() {
+		Log.debug(error4);
+
+		error((byte)4, error4, target, port);
+	}
+
+	/**
+	 * Builds and sends the acknowledge for the given block.
+	 * @param block The block to acknowledge.
+	 */
+	private void ack(int block) {
+		PacketCodec.putAck(aData, PacketCodec.wireBlock(block, rollover));
+		if (ackPkt == null) ackPkt = new DatagramPacket(aData, aData.length);
+		ackPkt.setAddress(target);
+		ackPkt.setPort(port);
+
+		Log.debug("Sending acknowledge for block {}", PacketCodec.wireBlock(block, rollover));
+
+		sndPkt = ackPkt;
+		send();
+	}
+
+	/**
+	 * Prompts for a file and reads it from the server.
 	 * @throws IOException
 	 */
 	private void startRead() throws IOException {
-		byte[] data;
+		if (segments > 1) readSegmented(pickFile());
+		else read(pickFile());
+	}
+
+	/**
+	 * Starts a read operation. Reads from the server and writes to a local file.
+	 * <p>
+	 * Blocks are acknowledged once a whole window of them has arrived in order, or at the final block.  They are
+	 * written to the file behind the transfer, so only the final acknowledge waits for the disk.
+	 * @param file The name of the file, on the server and in the client directory.
+	 * @throws IOException
+	 */
+	void read(String file) throws IOException {
+		read(file, 0, -1);
+	}
+
+	/**
+	 * Reads a file, or only part of it, from the server.
+	 * <p>
+	 * A part is written into the local file at its own offset, leaving the rest of the file as it is.
+	 * @param file The name of the file, on the server and in the client directory.
+	 * @param offset Where the part starts.
+	 * @param length The length of the part, or -1 for the whole file.
+	 * @throws IOException
+	 */
+	private void read(String file, long offset, long length) throws IOException {
+		int number;
+		// The last block received in order, and how many have arrived since it was last acknowledged.
+		int received = 0, sinceAck = 0;
+		boolean gapAcked = false, finished = false;
+		RetransmitTimer timer;
 
 		Boolean first = true;
 
-		// Prompt the user to select a file to read, then open and/or create the file to write to.
-		String file = pickFile();
-		BufferedOutputStream out=null;
-		if (verbose) System.out.println("Opening file.");
+		// Open and/or create the file to write to.  It is written behind the transfer once the block size is known.
+		FileChannel channel = null;
+		WriteBehind out;
+		Log.debug("Opening file.");
 		try {
-			out= new BufferedOutputStream(new FileOutputStream("Client/" + file));
+			// Parts of a file are read into the same file, so they mustn't truncate it.
+			if (length < 0) channel = new FileOutputStream(dir + file).getChannel();
+			else channel = new RandomAccessFile(dir + file, "rw").getChannel();
 		} catch (FileNotFoundException e) {
-			System.out.println("Path Client/" + file + " could not be found. Please check permissions or spelling.");
+			System.out.println("Path " + dir + file + " could not be found. Please check permissions or spelling.");
 			quit();
 		} catch (SecurityException e) {
 			System.out.println("You don't have access to " + file + ". Please check permissions.");
@@ -393,24 +616,26 @@ public class Client {
 		
 
 		// Build the data buffer for the RRQ.
+		tsize = 0;
+		rangeOffset = offset;
+		rangeLength = length;
 		byte[] request = buildRQ(file, readReq);
 
-		// Hold the block number and opcode.
-		byte[] block = {0x00, 0x01};
-		byte[] opcode = {0x00, 0x04};
-
-		sock.setSoTimeout(0);
+		sock.setSoTimeout(timeout_ms);
 		
 		// Build the RRQ packet from the request array, send the request, then wait for a response.
-		if (verbose) System.out.println("Sending request.");
-		sndPkt = new DatagramPacket(request, request.length, target, test ? 23 : 69);
+		Log.debug("Sending request.");
+		blksize = defaultBlksize;
+		windowsize = 1;
+		timeout = 0;
+		rollover = 0;
+		sndPkt = new DatagramPacket(request, request.length, target, test ? 23 : serverPort);
 		send();
-		receive();
+		requestReceive();
 		
-		if (rcvPkt.getData()[1] == (byte)0x05 && rcvPkt.getData()[3] == (byte)0x02) {
-			byte[] errMsg = new byte[rcvPkt.getLength() - 4];
-			System.arraycopy(rcvPkt.getData(), 4, errMsg, 0, errMsg.length);
-			System.out.println(new String(errMsg));
+		// An error in answer to the request means the transfer never started, so there's nothing to retry.
+		if (PacketCodec.opcode(rData) == PacketCodec.ERROR) {
+			printError();
 			quit();
 		}
 
@@ -419,162 +644,363 @@ public class Client {
 		port = rcvPkt.getPort();
 		TID = port;
 
-		if (verbose) {
-			System.out.print("Response received from ");
-			System.out.print(target.getHostAddress());
-			System.out.print(" on port ");
-			System.out.println(port);
-			System.out.println("Starting read.");
-		}
-		if(rcvPkt.getData()[1]==(byte)5) {
-			if (rcvPkt.getData()[3] == (byte)4) {
-				System.out.println("Illegal TFTP operation was requested.");
-				quit();
-			}
+		Log.debug("Response received from {} on port {}", target.getHostAddress(), port);
+		Log.debug("Starting read.");
+		// The server accepted our options.  Accept the OACK by acknowledging block 0, then wait for the first block.
+		// If the server said how big the file is, make sure it fits before accepting, and give it its full size.
+		// A server which sends the data straight away didn't take up the range.  A part has already been made room for.
+		if (rcvPkt.getData()[1] == (byte)0x06) {
+			if (!parseOACK()) rejectOACK();
+			if (length < 0 && tsize > new File(dir).getUsableSpace()) rejectSize();
+
+			ack(0);
+			first = false;
+		} else if (length >= 0 && PacketCodec.opcode(rData) == PacketCodec.DATA) {
+			rejectOACK();
 		}
+
+		// It's up to the server to send blocks again, but a server which has gone quiet is nudged with the last
+		// acknowledge, and given up on once the timer has backed off as far as it goes.
+		if (timeout > 0) timer = new RetransmitTimer(1000 * timeout, false);
+		else timer = new RetransmitTimer(timeout_ms, true);
+		sock.setSoTimeout(timer.getTimeout());
+
+		out = new WriteBehind(channel, offset, blksize, windowsize, syncPolicy);
+		if (length < 0) out.preallocate(tsize);
+
 		/*
-		 * While the packet received is 516 bytes (4 byte header plus 512 bytes data):
-		 *   - Receive a packet.
-		 *   - Increment the block number.
-		 *   - Separate the data from the header.
-		 *   - Write the data to the file.
-		 *   - Send the response.
+		 * Until the final block (shorter than the block size) has been written:
+		 *   - Receive a packet.  If none arrives in time, acknowledge the last block received in order again.
+		 *   - If it is the next block in order, write it to the file.
+		 *   - Acknowledge at the end of a window, on the final block, on a repeated window or on a missing block.
 		 */
 		do {
 			// Used to prevent a double receive() on the first block. 
 			if (first) {
 				first = false;
-			} else {
+			} else try {
 				receive();
-			}
-			
-			if ((0xff & rcvPkt.getData()[3] + 256 * (0xff & rcvPkt.getData()[2])) == (0xff & block[1] + 256 * (0xff & block[0]) - 1)) {
-				send();
+			} catch (SocketTimeoutException e) {
+				if (!timer.timedOut()) {
+					System.out.println("Server stopped responding.");
+					quit();
+				}
+
+				Log.debug("Receive timed out.  Acknowledging again.");
+				sock.setSoTimeout(timer.getTimeout());
+				ack(received);
+				sinceAck = 0;
+				retransmits++;
 				continue;
 			}
-			
-			if (verbose) {
-				System.out.println("Received packet");
-				System.out.print("Opcode ");
-				System.out.println(new Integer(rcvPkt.getData()[1]));
-				System.out.println(new String(rcvPkt.getData()));
-				System.out.print("Block "); System.out.println(0xff & rcvPkt.getData()[3] + 256 * (0xff & rcvPkt.getData()[2]));
-				System.out.println();
-			}
 
-			
-			if(!(rcvPkt.getData()[1] == (byte)0x03 || rcvPkt.getData()[1] == (byte)0x05 )){
-				if (verbose) System.out.println(error4);
-				
-				byte[] errorData =createErrorMsg((byte)4, error4.getBytes());
-				sndPkt  = new DatagramPacket(errorData, errorData.length, rcvPkt.getAddress(), rcvPkt.getPort());
+			// The OACK was sent again, so the acknowledge of block 0 must have been lost.
+			if (PacketCodec.opcode(rData) == PacketCodec.OACK) {
 				send();
-				quit();
+				continue;
 			}
-			if(rcvPkt.getPort() != TID) {
-				if (verbose) System.out.println(badTID);
-				byte [] errorData = createErrorMsg((byte) 5, badTID.getBytes());
-				sndPkt = new DatagramPacket (errorData, errorData.length, target, port);
-				
-				send();
-				//change so it received?
-				
+
+			if (rcvPkt.getPort() != TID) {
+				rejectTID();
+				continue;
 			}
 
-			if(rcvPkt.getData()[1]==(byte)0x05) {
-				if (rcvPkt.getData()[3]==(byte)5) {
+			if (PacketCodec.opcode(rData) == PacketCodec.ERROR) {
+				if (PacketCodec.block(rData) == 5) {
 					System.out.println("Acknowledge went to wrong server, attempting to retransfer");
-
 					send();
-					
-					receive();
-					
-					if ((0xff & rcvPkt.getData()[3] + 256 * (0xff & rcvPkt.getData()[2])) <= (0xff & block[1] + 256 * (0xff & block[0]) - 1)) {
-						send();
-						continue;
-					}
-					
-					if (verbose) {
-						System.out.println("Received packet");
-						System.out.print("Opcode ");
-						System.out.println(new Integer(rcvPkt.getData()[1]));
-						System.out.println(new String(rcvPkt.getData()));
-					}
-				}
-				if (rcvPkt.getData()[3] == (byte)0x04) {
-					// Invalid TFTP operation. Unrecoverable by definition.
-					byte[] errorMsg = new byte[rcvPkt.getLength()];
-					
-					System.arraycopy(rcvPkt.getData(), 4, errorMsg, 0, rcvPkt.getLength() - 5);
-					
-					if (verbose) System.out.println("Error code 4, Invalid TFTP Operation");
-					
-					System.out.println(new String(errorMsg));
-					
-					quit();
-				}
-				if (rcvPkt.getData()[3] == (byte)0x03) {
-					
+					continue;
 				}
-				if(rcvPkt.getData()[3] == (byte)1)
-				{
-					byte[] errorMsg = new byte[rcvPkt.getLength()];
-					
-					System.arraycopy(rcvPkt.getData(), 4, errorMsg, 0, rcvPkt.getLength() - 5);
-					if (verbose) System.out.println("Error code 1, file not found");
-					System.out.println("Could not find specified file on server.");
-					
-					quit();
-				}
-			}
 
-			if (0xff & block[1] + 256 * (0xff & block[0]) == 0xff & rcvPkt.getData()[3] + 256 * (0xff & rcvPkt.getData()[2])) {
-				data = new byte[rcvPkt.getLength() - 4];
-				System.arraycopy(rcvPkt.getData(), 4, data, 0, data.length);
-				out.write(data, 0, data.length);
-				out.flush();
-				if (block[1]++ == (byte)0xff) block[0]++;
+				printError();
+				quit();
 			}
 
-			request = new byte[4];
-			System.arraycopy(opcode, 0, request, 0, 2);
-			request[2] = rcvPkt.getData()[2];
-			request[3] = rcvPkt.getData()[3];
-			
-			if (verbose) {
-				System.out.print("Sending acknowledge for block ");
-				System.out.println(0xff & rcvPkt.getData()[3] + 256 * (0xff & rcvPkt.getData()[2]));
-				System.out.println();
+			if (PacketCodec.opcode(rData) != PacketCodec.DATA) {
+				rejectOpcode();
+				quit();
 			}
 
-			sndPkt = new DatagramPacket(request, request.length, target, port);
+			// Work out which block the 16 bit block number refers to, relative to the one expected.
+			number = PacketCodec.block(rData);
+			number = PacketCodec.dataBlock(received + 1, number, rollover);
+
+			Log.debug("Received block {}, {} bytes", PacketCodec.block(rData), rcvPkt.getLength() - 4);
+			Log.payload(PacketCodec.block(rData), rData, 4, rcvPkt.getLength() - 4);
+
+			if (number == received + 1) {
+				finished = rcvPkt.getLength() < blksize + 4;
+
+				// The final acknowledge tells the server the file is complete, so it waits until it's durable.
+				out.write(rcvPkt.getData(), 4, rcvPkt.getLength() - 4);
+				if (finished) out.finish();
 
-			send();
-		} while (rcvPkt.getLength() > 515);
+				received = number;
+				gapAcked = false;
+				timer.acked();
+
+				if (++sinceAck == windowsize || finished) {
+					ack(received);
+					sinceAck = 0;
+				}
+			} else if (number == received) {
+				// The end of the window arrived again, so its acknowledge must have been lost.
+				ack(received);
+				sinceAck = 0;
+			} else if (number > received && !gapAcked) {
+				// A block went missing.  Have the server start again after the last one received in order.
+				ack(received);
+				gapAcked = true;
+				sinceAck = 0;
+			}
+		} while (!finished);
 		
 		out.close();
+		if (length < 0) System.out.println("Finished read.");
+	}
+
+	/**
+	 * Reads a file over several transfers at once, each fetching one range of it on a socket of its own.
+	 * <p>
+	 * An empty range is read first to learn the size of the file.  The local file is then given its full size, and
+	 * the ranges are written into it at their own offsets as they arrive.  If any range fails, so does the read.
+	 * @param file The name of the file, on the server and in the client directory.
+	 * @throws IOException
+	 */
+	void readSegmented(String file) throws IOException {
+		long size, length;
+		ArrayList<Client> parts = new ArrayList<Client>();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		AtomicBoolean failed = new AtomicBoolean();
+
+		read(file, 0, 0);
+		size = tsize;
+
+		if (size > new File(dir).getUsableSpace() + new File(dir + file).length()) {
+			System.out.println("There isn't room for " + file + " in " + dir + ".");
+			quit();
+		}
+
+		try (RandomAccessFile out = new RandomAccessFile(dir + file, "rw")) {
+			out.setLength(size);
+		}
+
+		// Ranges smaller than a block would only add round trips.
+		length = Math.max(reqBlksize, (size + segments - 1) / segments);
+
+		for (long offset = 0; offset < size; offset += length) {
+			final long from = offset, to = Math.min(length, size - offset);
+			Client part = new Client(target, serverPort);
+
+			part.test = test;
+			part.dir = dir;
+			part.requestOptions(reqBlksize, reqWindowsize, reqTimeout);
+			part.reqRollover = reqRollover;
+			part.syncPolicy = syncPolicy;
+			parts.add(part);
+
+			threads.add(new Thread(() -> {
+				try {
+					part.read(file, from, to);
+				} catch (TransferFailed e) {
+					failed.set(true);
+				} catch (IOException e) {
+					e.printStackTrace();
+					failed.set(true);
+				} finally {
+					part.close();
+				}
+			}, "segment-" + parts.size()));
+		}
+
+		for (Thread thread : threads) thread.start();
+
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+
+		for (Client part : parts) retransmits += part.retransmits;
+
+		if (failed.get()) {
+			System.out.println("Could not read every part of " + file + ".");
+			quit();
+		}
+
 		System.out.println("Finished read.");
 	}
 
 	/**
 	 * Builds a byte array for a request packet.
+	 * <p>
+	 * A blksize, windowsize or timeout option is added when a value other than the default has been set, and a
+	 * rollover option when one has been set at all.  A tsize option is always added, with the size of the file for a
+	 * write and 0 for a read, and a range option when a read asks for part of the file.
 	 * @param file The name of the file to be read or written.
 	 * @param opcode The opcode indicating whether it is a read or write request.
 	 * @return The data buffer for the request packet.
 	 */
-	private byte[] buildRQ(String file, byte opcode) {
+	byte[] buildRQ(String file, byte opcode) {
 		byte[] request;
-		byte[] code = {0x00, opcode};
-		request = new byte[file.length() + mode.length() + 4];
+		String blk = Integer.toString(reqBlksize), win = Integer.toString(reqWindowsize), tmo = Integer.toString(reqTimeout);
+		String rol = Integer.toString(reqRollover), tsz = Long.toString(tsize);
+		String rng = PacketCodec.range(rangeOffset, rangeLength);
+		int length = file.length() + mode.length() + 4;
+
+		if (reqBlksize != defaultBlksize) length += PacketCodec.optionLength("blksize", blk);
+		if (reqWindowsize != 1) length += PacketCodec.optionLength("windowsize", win);
+		if (reqTimeout != 0) length += PacketCodec.optionLength("timeout", tmo);
+		if (reqRollover != -1) length += PacketCodec.optionLength("rollover", rol);
+		length += PacketCodec.optionLength("tsize", tsz);
+		if (rangeLength >= 0) length += PacketCodec.optionLength("range", rng);
+
+		request = new byte[length];
+
+		length = PacketCodec.putRequest(request, opcode, file, mode);
+		if (reqBlksize != defaultBlksize) length = PacketCodec.putOption(request, length, "blksize", blk);
+		if (reqWindowsize != 1) length = PacketCodec.putOption(request, length, "windowsize", win);
+		if (reqTimeout != 0) length = PacketCodec.putOption(request, length, "timeout", tmo);
+		if (reqRollover != -1) length = PacketCodec.putOption(request, length, "rollover", rol);
+		length = PacketCodec.putOption(request, length, "tsize", tsz);
+		if (rangeLength >= 0) PacketCodec.putOption(request, length, "range", rng);
 
-		System.arraycopy(code, 0, request, 0, 2);		
-		System.arraycopy(file.getBytes(), 0, request, 2, file.length());
-		request[file.length() + 2] = 0x00;
+		return request;
+	}
 
-		System.arraycopy(mode.getBytes(), 0, request, file.length() + 3, mode.length());
-		request[request.length - 1] = 0x00;
+	/**
+	 * @return How many times a request or window has been sent again, over all transfers.
+	 */
+	long getRetransmits() {
+		return retransmits;
+	}
 
-		return request;
+	/**
+	 * Sets when a file read counts as durable.  The final block is only acknowledged then.
+	 * @param policy WriteBehind.NONE, WriteBehind.CLOSE or the number of bytes between syncs.
+	 */
+	void setSyncPolicy(long policy) {
+		syncPolicy = policy;
+	}
+
+	/**
+	 * Sets the directory files are read from and written to.
+	 * @param dir The directory, ending in /.
+	 */
+	void setDir(String dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Closes the socket of a client without a console once its transfer is done.
+	 */
+	void close() {
+		sock.close();
+	}
+
+	/**
+	 * Sets the options to request for following transfers.
+	 * @param blksize The block size, 512 for no option.
+	 * @param windowsize The window size, 1 for no option.
+	 * @param timeout The timeout in seconds, 0 for no option.
+	 */
+	void requestOptions(int blksize, int windowsize, int timeout) {
+		reqBlksize = Math.max(minBlksize, Math.min(blksize, maxBlksize));
+		reqWindowsize = Math.max(1, Math.min(windowsize, maxWindowsize));
+		reqTimeout = Math.max(0, Math.min(timeout, 255));
+	}
+
+	/**
+	 * Prompts the user for the block size to request.
+	 */
+	private void setBlksize() {
+		int size;
+		Scanner stream = new Scanner(System.in);
+		System.out.println("Enter the block size to request (8 - 65464, 512 for no option): ");
+
+		try {
+			size = Integer.parseInt(stream.nextLine().trim());
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid block size.");
+			return;
+		}
+
+		if (size < minBlksize || size > maxBlksize) System.out.println("Invalid block size.");
+		else reqBlksize = size;
+	}
+
+	/**
+	 * Prompts the user for the window size to request.
+	 */
+	private void setWindowsize() {
+		int size;
+		Scanner stream = new Scanner(System.in);
+		System.out.println("Enter the window size to request (1 - 65535, 1 for no option): ");
+
+		try {
+			size = Integer.parseInt(stream.nextLine().trim());
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid window size.");
+			return;
+		}
+
+		if (size < 1 || size > maxWindowsize) System.out.println("Invalid window size.");
+		else reqWindowsize = size;
+	}
+
+	/**
+	 * Prompts the user for the retransmission timeout to request.
+	 */
+	private void setTimeout() {
+		int seconds;
+		Scanner stream = new Scanner(System.in);
+		System.out.println("Enter the timeout to request in seconds (1 - 255, 0 to adapt to the network): ");
+
+		try {
+			seconds = Integer.parseInt(stream.nextLine().trim());
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid timeout.");
+			return;
+		}
+
+		if (seconds < 0 || seconds > 255) System.out.println("Invalid timeout.");
+		else reqTimeout = seconds;
+	}
+
+	/**
+	 * Prompts the user for the block number rollover to request.
+	 */
+	private void setRollover() {
+		String value;
+		Scanner stream = new Scanner(System.in);
+		System.out.println("Enter the block number to follow 65535 (0 or 1, blank for no option): ");
+
+		value = stream.nextLine().trim();
+		if (value.isEmpty()) reqRollover = -1;
+		else if (value.equals("0") || value.equals("1")) reqRollover = Integer.parseInt(value);
+		else System.out.println("Invalid rollover.");
+	}
+
+	/**
+	 * Prompts the user for how many ranges to split reads into.
+	 */
+	private void setSegments() {
+		int count;
+		Scanner stream = new Scanner(System.in);
+		System.out.println("Enter how many parts to read files in at once (1 - 64, 1 to read them whole): ");
+
+		try {
+			count = Integer.parseInt(stream.nextLine().trim());
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid number of parts.");
+			return;
+		}
+
+		if (count < 1 || count > maxSegments) System.out.println("Invalid number of parts.");
+		else segments = count;
 	}
 
 	private void setTarget() {
@@ -608,12 +1034,23 @@ public class Client {
 		private void printUI() {
 			System.out.println("T - Toggle test mode");
 			System.out.println("V - Toggle verbose mode");
+			System.out.println("P - Toggle payload dumps in verbose mode");
 			System.out.println("W - Initiate file write");
 			System.out.println("R - Initiate file read");
 			System.out.println("I - Set the target IP (Default localhost)");
 			System.out.println("C - Change client directory.");
+			System.out.println("B - Set the block size (Default 512)");
+			System.out.println("N - Set the window size (Default 1)");
+			System.out.println("O - Set the timeout (Default adapts to the network)");
+			System.out.println("L - Set the block number rollover (Default not requested)");
+			System.out.println("G - Set how many parts reads are split into (Default 1)");
 			System.out.println("Q - Quit");
-			System.out.print("Test: "); System.out.print(test); System.out.print("    Verbose: "); System.out.println(verbose);
+			System.out.print("Test: "); System.out.print(test); System.out.print("    Log level: "); System.out.print(Log.getLevelName());
+			System.out.print("    Block size: "); System.out.print(reqBlksize);
+			System.out.print("    Window size: "); System.out.print(reqWindowsize);
+			System.out.print("    Timeout: "); System.out.print(reqTimeout == 0 ? "adaptive" : reqTimeout + " s");
+			System.out.print("    Rollover: "); System.out.print(reqRollover == -1 ? "not requested" : reqRollover);
+			System.out.print("    Read parts: "); System.out.println(segments);
 		}
 
 		/**
@@ -625,6 +1062,8 @@ public class Client {
 			Scanner input = new Scanner(System.in);
 
 			while (!quit) {
+				// Let the log catch up with the last transfer before showing the menu again.
+				Log.flush();
 				printUI();
 				command = input.nextLine();
 				
@@ -635,7 +1074,9 @@ public class Client {
 							  	break;
 						case 't': test = !test;
 								break;
-						case 'v': verbose = !verbose;
+						case 'v': Log.toggle(Log.DEBUG);
+								break;
+						case 'p': Log.toggle(Log.PAYLOAD);
 								break;
 						case 'w': startWrite();
 								break;
@@ -645,6 +1086,16 @@ public class Client {
 							 	break;
 						case 'c': changeDir();
 								break;
+						case 'b': setBlksize();
+								break;
+						case 'n': setWindowsize();
+								break;
+						case 'o': setTimeout();
+								break;
+						case 'l': setRollover();
+								break;
+						case 'g': setSegments();
+								break;
 					}
 				
 				}
@@ -660,6 +1111,14 @@ public class Client {
 		}
 	}
 
+	/**
+	 * TransferFailed
+	 * Thrown by a client without a console when a transfer has to be abandoned.  The reason has already been printed.
+	 */
+	static class TransferFailed extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
 	public static void main(String[] args) throws IOException {
 		Client client = new Client();
 	}
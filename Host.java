@@ -1,16 +1,74 @@
 package rtcsproject;
 
 
-import java.net.DatagramSocket;
+import java.io.BufferedReader;
+import java.io.FileReader;
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.Scanner;
-import java.net.SocketException;
+import java.util.function.Consumer;
 
+/**
+ * Host
+ * The host sits between clients and the server, forwarding packets both ways, and can simulate errors in them.
+ * <p>
+ * Clients send their requests to port 23.  Each client, by address and port, gets a session with a socket of its own
+ * facing the server, so the server sees every session as a different client.  Packets for the client are sent from
+ * port 23, so its later packets come back there too.
+ * <p>
+ * One thread forwards for every session without blocking.  It waits on all the sockets at once and forwards whatever
+ * arrives, in either direction, so a lost packet only holds up its own transfer.  Sessions idle for a minute are
+ * dropped.
+ * <p>
+ * The simulated errors count packets in each direction over all sessions, from when the error was set.
+ * <p>
+ * Each direction can also have an impairment profile, which goes on losing, delaying, duplicating, reordering and
+ * corrupting packets at random for as long as it is set.  The random numbers come from one seeded generator, so a run
+ * with the same seed and the same packets in the same order is impaired the same way.
+ * <p>
+ * After its impairment, each direction can pass through an emulated link, with a bandwidth, a propagation delay and
+ * a queue of limited length in front of it, to see how transfers do over a known bottleneck.
+ * <p>
+ * Arguments:
+ * -client <profile> impairs the packets from clients, and -server <profile> the packets from the server
+ * -clientlink <link> and -serverlink <link> pass the packets from clients, or from the server, through a link
+ * -capture <file> records every packet received in the file, as Capture describes
+ * -scenario <file> applies the timeline of faults and impairments in the file, as Scenario describes
+ * <p>
+ * Or, to replay a capture instead of forwarding:
+ * -replay <file> sends the packets from clients in the capture to the server again, as Replay describes
+ * -speed <factor> replays that many times faster than they were captured, default 1
+ * -target <host> and -port <port> of the server, default this host and 69
+ * -seed <number> seeds the random numbers, default the time
+ */
 public class Host {
-	private static final int receiveLength = 516;
+	// Large enough for a DATA packet at the largest block size.
+	private static final int receiveLength = 65468;
+	private static final int socketBuffer = 4 * 1024 * 1024;
+	private static final long idleTimeout_ms = 60000;
+	private static final long tick_ms = 1000;
+	// A request repeated this soon is the client retrying, not starting another transfer.
+	private static final long retryWindow_ms = 2000;
 	private static final int NORMAL =0;
 	private static final int CHANGEOPCODECLIENT = 1;
 	private static final int CHANGEOPCODESERVER = 2;
@@ -29,345 +87,1616 @@ public class Host {
 	private static final int CHANGEMODE = 15;
 	private static final String invalidMode = "sdkgjadfga";
 	private boolean  verbose, reset;
-	private int targetPort, returnPort, errorReq,delay, packetNum, serverPkt, clientPkt;
-	private DatagramSocket port23, sndRcvSok, sndSok;
-	private DatagramPacket rcvPkt1, rcvPkt2, sndPkt;
-	private InetAddress target1, target2;
+	private volatile int errorReq;
+	private int targetPort, delay, packetNum, serverPkt, clientPkt;
+	private DatagramChannel port23;
+	private Selector selector;
+	private InetAddress target1;
+	// The sessions by client address and port, and the packets held back to be sent later.
+	private HashMap<SocketAddress, Session> sessions;
+	private TimerWheel delayed;
+	private ByteBuffer buf;
+	// The impairment of the packets from clients and from the server, or null for none.
+	private volatile Impairment fromClient, fromServer;
+	// The link the packets from clients and from the server go through, or null for none.
+	private volatile Link clientLink, serverLink;
+	private Random random;
+	private long seed;
+	// The capture being recorded, or null, the one the packet being forwarded is recorded in, and its faults so far.
+	private volatile Capture capture;
+	private Capture recording;
+	private int faults;
+	// The timeline being applied, or null.
+	private Scenario scenario;
+	private long nextCheck;
 
 	public Host() {
 		try {
-			port23 = new DatagramSocket(23);
-			sndRcvSok = new DatagramSocket();
-			sndSok = new DatagramSocket();
+			selector = Selector.open();
+			port23 = DatagramChannel.open();
+			port23.setOption(StandardSocketOptions.SO_RCVBUF, socketBuffer);
+			port23.bind(new InetSocketAddress(23));
+			port23.configureBlocking(false);
+			port23.register(selector, SelectionKey.OP_READ);
 			target1 = InetAddress.getLocalHost();
-		} catch (SocketException e) {
-			e.printStackTrace();
-		} catch (UnknownHostException e) {
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
 
 		verbose = false;
 		reset = false;
 		targetPort = 69;
+		sessions = new HashMap<SocketAddress, Session>();
+		delayed = new TimerWheel();
+		// A heap buffer, so the errors which change a packet can work on its array.
+		buf = ByteBuffer.allocate(receiveLength);
+		setSeed(System.currentTimeMillis());
 
 		new UI().start();
 	}
 
 	/**
-	 * Receives data from the given socket into the given packet.
-	 * @param pkt
-	 * @param sock
+	 * Forwards packets until the host is quit.
+	 * <p>
+	 * Until quit:
+	 *   - Wait for a packet on any socket, or until a delayed packet is due or sessions need checking.
+	 *   - Forward every packet waiting, from clients to the server and from the server to clients.
+	 *   - Send the delayed packets which are due, let out what the links have room for, and drop sessions which have
+	 *     gone idle.
+	 */
+	public void serve() {
+		while (true) {
+			try {
+				selector.select(timeToWait());
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if (!key.isValid()) continue;
+					if (key.attachment() == null) receiveClients();
+					else receiveServer((Session)key.attachment());
+				}
+
+				sendDue();
+				if (scenario != null) scenario.tick(System.nanoTime());
+				pump(clientLink);
+				pump(serverLink);
+				if (System.nanoTime() - nextCheck >= 0) expire();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return How long the loop may wait for packets before it has something else to do, in ms.
+	 */
+	private long timeToWait() {
+		long wait = nextCheck - System.nanoTime();
+
+		Link link;
+
+		wait = Math.min(wait, delayed.untilNext(System.nanoTime()));
+		if (scenario != null) wait = Math.min(wait, scenario.untilNext(System.nanoTime()));
+		if ((link = clientLink) != null) wait = Math.min(wait, link.untilNext(System.nanoTime()));
+		if ((link = serverLink) != null) wait = Math.min(wait, link.untilNext(System.nanoTime()));
+
+		// select(0) would wait forever.
+		return Math.max(1, wait / 1000000L);
+	}
+
+	/**
+	 * Forwards every packet waiting on port 23 to the server.  A request from a new client starts a session for it.
+	 * Anything else from a client without a session is dropped.
+	 * <p>
+	 * A client which hears nothing sends its request again.  Once the server has answered, the repeat is dropped
+	 * until the transfer ends: it would reach the server as a new request, and start the transfer over.  After the
+	 * transfer has ended, the same request starts a new one.
+	 */
+	private void receiveClients() throws IOException {
+		SocketAddress client;
+		Session session;
+
+		while ((client = port23.receive(buf)) != null) {
+			buf.flip();
+			session = sessions.get(client);
+			record(true, client, session != null && session.server != null ? session.server
+					: new InetSocketAddress(target1, targetPort), buf);
+
+			try {
+				clientPacket(client, session);
+			} finally {
+				commit();
+				buf.clear();
+			}
+		}
+	}
+
+	/**
+	 * Forwards the packet a client sent, which is in buf.
+	 * @param session The client's session, or null if it has none yet.
 	 */
-	private void receive(DatagramPacket pkt, DatagramSocket sock) {
+	private void clientPacket(SocketAddress client, Session session) throws IOException {
+		if (isRequest(buf)) {
+			if (session != null && session.server != null && session.repeats(buf)) {
+				if (verbose) System.out.println("Dropping repeated request from " + client + ".");
+				faults |= Capture.DROPPED;
+				return;
+			}
+
+			if (errorReq == CHANGEMODE) {
+				changeMode(buf);
+				faults |= CHANGEMODE;
+				errorReq = NORMAL;
+			}
+
+			if (session == null) {
+				session = new Session(client);
+				sessions.put(client, session);
+			}
+
+			// A request starts a new transfer, whose packets come from a port of its own on the server.
+			if (!session.repeats(buf)) session.request(buf);
+			session.server = null;
+		}
+
+		if (session != null) {
+			session.lastActive = System.nanoTime();
+			session.observe(buf);
+			print("Client", client, buf);
+			forward(buf, session.upstream,
+					session.server != null ? session.server : new InetSocketAddress(target1, targetPort), true);
+		} else {
+			if (verbose) System.out.println("Dropping packet from " + client + ", which hasn't sent a request.");
+			faults |= Capture.DROPPED;
+		}
+	}
+
+	/**
+	 * Forwards every packet waiting on a session's socket to its client.
+	 */
+	private void receiveServer(Session session) throws IOException {
+		SocketAddress server;
+
+		while ((server = session.upstream.receive(buf)) != null) {
+			buf.flip();
+
+			if (session.server == null) session.server = server;
+			session.lastActive = System.nanoTime();
+			session.observe(buf);
+			record(false, session.client, server, buf);
+
+			try {
+				print("Server", server, buf);
+				forward(buf, port23, session.client, false);
+			} finally {
+				commit();
+				buf.clear();
+			}
+		}
+	}
+
+	/**
+	 * Records a packet just received in the capture, if one is being made, and counts it in the scenario's phase,
+	 * which may start a step of the scenario.  Its faults are added as it's forwarded, and it's complete once
+	 * committed.
+	 */
+	private void record(boolean fromClient, SocketAddress client, SocketAddress server, ByteBuffer packet) {
+		long now = System.nanoTime();
+
+		recording = capture;
+		faults = 0;
+
+		if (recording != null) recording.record(now, fromClient, client, server, packet);
+		if (scenario != null) scenario.observe(now, fromClient, packet);
+	}
+
+	private void commit() {
+		if (recording != null) recording.commit(faults);
+		if (scenario != null && (faults & (Capture.LOST | Capture.DROPPED)) != 0) scenario.phase.lost++;
+		recording = null;
+	}
+
+	/**
+	 * Reads a scenario and applies its steps for the start.
+	 * @throws IOException If the file can't be read.
+	 * @throws IllegalArgumentException If a step can't be read.
+	 */
+	public void setScenario(String file) throws IOException {
+		scenario = new Scenario(file);
+		scenario.tick(System.nanoTime());
+	}
+
+	/**
+	 * Starts recording the packets received in a new capture, replacing the file if it exists, and stops recording
+	 * the capture before.
+	 * @param file The file, or null to stop recording.
+	 * @throws IOException If the file can't be created.
+	 */
+	public void setCapture(String file) throws IOException {
+		Capture old = capture;
+
+		capture = file == null ? null : new Capture(file);
+		if (old != null) old.close();
+	}
+
+	/**
+	 * Sends a packet on to where it's going, simulating the error set if this is the packet it was set for.
+	 * @param packet The packet, from its position to its limit.
+	 * @param via The socket to send it from.
+	 * @param to Where to send it.
+	 * @param client True if the packet came from a client, false if it came from the server.
+	 */
+	private void forward(ByteBuffer packet, DatagramChannel via, SocketAddress to, boolean client) throws IOException {
+		int error = errorReq;
+		int nth = client ? --clientPkt : --serverPkt;
+
+		// Errors which change the packet, or send it from a port the receiver doesn't know.
+		if (nth == 0 && (error == (client ? CHANGEOPCODECLIENT : CHANGEOPCODESERVER)
+				|| error == (client ? CHANGEOPCODECLIENTv : CHANGEOPCODESERVERv))) {
+			changeOpcode(packet, error);
+			faults |= error;
+			errorReq = NORMAL;
+		} else if (nth == 0 && error == (client ? CHANGELENGTHCLIENT : CHANGELENGTHSERVER)) {
+			packet = changeLength(packet);
+			faults |= error;
+			errorReq = NORMAL;
+		} else if (nth == 0 && error == (client ? CHANGETIDCLIENT : CHANGETIDSERVER)) {
+			faults |= error;
+			errorReq = NORMAL;
+
+			// The receiver answers the stranger with error 5, and the sender times out and sends the packet again.
+			try (DatagramChannel stranger = DatagramChannel.open()) {
+				stranger.bind(null);
+				stranger.send(packet, to);
+				System.out.println("New port: " + ((InetSocketAddress)stranger.getLocalAddress()).getPort());
+			}
+			return;
+		}
+
+		// Errors which change when the packet arrives, if at all.
+		if (error == (client ? DELAYCLIENT : DELAYSERVER) || error == (client ? DUPLICATECLIENTPKT : DUPLICATESERVERPKT)
+				|| error == (client ? LOSECLIENTPKT : LOSESERVERPKT)) {
+			packetNum--;
+		}
+
+		if (packetNum == 0 && error == (client ? DELAYCLIENT : DELAYSERVER)) {
+			faults |= error;
+			errorReq = NORMAL;
+			later(packet, via, to, delay * 1000000L, client);
+			return;
+		}
+
+		if (packetNum == 0 && error == (client ? LOSECLIENTPKT : LOSESERVERPKT)) {
+			faults |= error | Capture.LOST;
+			errorReq = NORMAL;
+			if (verbose) System.out.println("Losing packet.");
+			return;
+		}
+
+		impair(packet, via, to, client);
+
+		if (packetNum == 0 && error == (client ? DUPLICATECLIENTPKT : DUPLICATESERVERPKT)) {
+			faults |= error;
+			errorReq = NORMAL;
+			packet.rewind();
+			later(packet, via, to, delay * 1000000L, client);
+		}
+	}
+
+	/**
+	 * Sends a packet through its direction's impairment, which may lose it, corrupt it, hold it back or send it twice,
+	 * and then on to its link.
+	 * @param client True if the packet came from a client, false if it came from the server.
+	 */
+	private void impair(ByteBuffer packet, DatagramChannel via, SocketAddress to, boolean client) {
+		Impairment impairment = client ? fromClient : fromServer;
+		int copies;
+
+		if (impairment == null) {
+			enter(packet, via, to, client);
+			return;
+		}
+
+		if (impairment.lose(random)) {
+			if (verbose) System.out.println("Impairment lost the packet.");
+			faults |= Capture.LOST;
+			return;
+		}
+
+		if (impairment.corrupt(random)) {
+			corrupt(packet);
+			faults |= Capture.CORRUPTED;
+		}
+		copies = impairment.duplicate(random) ? 2 : 1;
+		if (copies == 2) faults |= Capture.DUPLICATED;
+
+		for (int i = 0; i < copies; i++) {
+			long wait = impairment.delay(random);
+
+			if (wait > 0) faults |= Capture.DELAYED;
+
+			if (wait > 0) later(packet, via, to, wait, client);
+			else enter(packet, via, to, client);
+			packet.rewind();
+		}
+	}
+
+	/**
+	 * Queues a packet for its direction's link, or sends it if there is none.  A full queue drops the packet.
+	 * @param client True if the packet came from a client, false if it came from the server.
+	 */
+	private void enter(ByteBuffer packet, DatagramChannel via, SocketAddress to, boolean client) {
+		Link link = client ? clientLink : serverLink;
+
+		if (link == null) send(packet, via, to);
+		else if (!link.offer(packet, via, to) && verbose) System.out.println("Link queue full.  Packet dropped.");
+	}
+
+	/**
+	 * Lets out the packets a link has the bandwidth for, to arrive after its propagation delay.
+	 */
+	private void pump(Link link) {
+		Delayed packet;
+		long now = System.nanoTime();
+
+		if (link == null) return;
+
+		while ((packet = link.next(now)) != null) {
+			if (link.delay_ns == 0) {
+				send(packet.data, packet.via, packet.to);
+			} else {
+				packet.due = now + link.delay_ns;
+				delayed.add(packet);
+			}
+		}
+	}
+
+	/**
+	 * Flips one bit of the packet at random, in its payload if it has one.  TFTP has no checksum, so a corrupted
+	 * block is written as it arrives, but a corrupted header makes the packet unreadable or misnumbered.
+	 */
+	private void corrupt(ByteBuffer packet) {
+		int length = packet.remaining();
+		int at = length > 4 ? 4 + random.nextInt(length - 4) : random.nextInt(Math.max(1, length));
+
+		if (length == 0) return;
+		packet.put(packet.position() + at, (byte)(packet.get(packet.position() + at) ^ 1 << random.nextInt(8)));
+	}
+
+	/**
+	 * Seeds the random numbers the impairments use.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+		random = new Random(seed);
+	}
+
+	/**
+	 * Sets the link the packets going one way go through.  Packets queued for the link it replaces are dropped.
+	 * @param client True for the packets from clients, false for the packets from the server.
+	 * @param profile The link, as Link reads it, or blank for none.
+	 * @throws IllegalArgumentException If the link can't be read.
+	 */
+	public void setLink(boolean client, String profile) {
+		Link link = profile.isBlank() ? null : new Link(profile);
+
+		if (client) clientLink = link;
+		else serverLink = link;
+	}
+
+	/**
+	 * Sets the impairment of the packets going one way.  Its counts start from zero.
+	 * @param client True for the packets from clients, false for the packets from the server.
+	 * @param profile The profile, as Impairment reads it, or blank for none.
+	 * @throws IllegalArgumentException If the profile can't be read.
+	 */
+	public void setImpairment(boolean client, String profile) {
+		Impairment impairment = profile.isBlank() ? null : new Impairment(profile);
+
+		if (client) fromClient = impairment;
+		else fromServer = impairment;
+	}
+
+	/**
+	 * Sends a packet.  A packet the socket has no room for is lost, as it would be on a busy network.
+	 */
+	private void send(ByteBuffer packet, DatagramChannel via, SocketAddress to) {
 		try {
-			sock.receive(pkt);
+			if (via.send(packet, to) == 0 && verbose) System.out.println("Send buffer full.  Packet lost.");
+		} catch (IOException e) {
+			// The session's socket was closed while the packet was held back.
+			if (verbose) e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Holds a copy of a packet back, to go on to its link after the given delay.
+	 * @param ns The delay in ns.
+	 * @param client True if the packet came from a client, false if it came from the server.
+	 */
+	private void later(ByteBuffer packet, DatagramChannel via, SocketAddress to, long ns, boolean client) {
+		ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+
+		copy.put(packet).flip();
+		delayed.add(new Delayed(System.nanoTime() + ns, copy, via, to, client ? 1 : 2));
+	}
+
+	/**
+	 * Sends the delayed packets which are due.
+	 */
+	private void sendDue() {
+		delayed.expire(System.nanoTime(), this::release);
+	}
+
+	private void release(Delayed packet) {
+		if (packet.link == 0) send(packet.data, packet.via, packet.to);
+		else enter(packet.data, packet.via, packet.to, packet.link == 1);
+	}
+
+	/**
+	 * Drops the sessions which have been idle too long.
+	 */
+	private void expire() {
+		long now = System.nanoTime();
+		Iterator<Session> it = sessions.values().iterator();
+
+		while (it.hasNext()) {
+			Session session = it.next();
+
+			if (now - session.lastActive > idleTimeout_ms * 1000000L) {
+				if (verbose) System.out.println("Session for " + session.client + " went idle.");
+				session.close();
+				it.remove();
+			}
+		}
+
+		nextCheck = now + tick_ms * 1000000L;
+	}
+
+	/**
+	 * @return True if the packet is an RRQ or WRQ.
+	 */
+	private static boolean isRequest(ByteBuffer packet) {
+		return packet.remaining() >= 2 && packet.get(0) == 0 && (packet.get(1) == 1 || packet.get(1) == 2);
+	}
+
+	private void print(String who, SocketAddress from, ByteBuffer packet) {
+		if (!verbose) return;
+
+		System.out.print(who); System.out.print(" "); System.out.print(from);
+		System.out.print("  Opcode "); System.out.print(packet.remaining() > 1 ? packet.get(1) : -1);
+		System.out.print("  Block "); System.out.print(block(packet));
+		System.out.print("  "); System.out.print(packet.remaining()); System.out.println(" bytes");
+	}
+
+	/** Changes the opcode of the packet, to 9 or to 4
+	 * @param packet
+	 * @param error The error being simulated.
+	 */
+	private void changeOpcode(ByteBuffer packet, int error) {
+		packet.put(0, (byte)0);
+		if(error == CHANGEOPCODECLIENT || error==CHANGEOPCODESERVER)
+		{
+			packet.put(1, (byte)9);
+		}else{
+			packet.put(1, (byte)4);
+		}
+	}
+	private void changeMode(ByteBuffer packet){
+		byte[] data = packet.array();
+		byte[] newmode = invalidMode.getBytes();
+		int i = 2;
+		while (i < packet.limit() && data[i] != 0x00) {
+			i++;
+		}
+		i++;
+		int j =0;
+	
+		while (i < packet.limit() && data[i] != 0x00 && j < "netascii".length()) {
+			data[i++] = newmode[j++]; 
+			
+			
+		}
+	
+	}
+	private void setTarget() {
+		String ip;
+		Scanner stream = new Scanner(System.in);
+		System.out.println("Enter the target IP address: ");
+		ip = stream.nextLine();
+
+		try {
+			target1 = InetAddress.getByName(ip);
+		} catch (UnknownHostException e) {
+			System.out.println("Invalid IP.");
+		}
+	}
+	/**
+	 * Lengthens the packet to at least 530 bytes, too long for its block size, by padding it with 0x05
+	 */
+	private ByteBuffer changeLength(ByteBuffer packet) {
+		ByteBuffer data = ByteBuffer.allocate(Math.max(530, packet.remaining() + 14));
+
+		data.put(packet);
+		while (data.hasRemaining()) data.put((byte)0x05);
+		data.flip();
+
+		return data;
+	}
+
+	/**
+	 * Closes the sockets and exits.
+	 */
+	private void quit() {
+		Capture capture = this.capture;
+
+		if (scenario != null) scenario.report();
+		if (capture != null) capture.close();
+		if (verbose) System.out.println("Closing port 23");
+		try {
+			port23.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+
+		System.out.println("Exiting");
+		System.exit(0);
+	}
+
+	public boolean isReset() {
+		boolean reset = this.reset;
+		this.reset = false;
+
+		return reset;
+	}
+
+	/**
+	 * Reads the block number of a DATA or ACK packet, or the error code of an ERROR packet.
+	 * <p>
+	 * The number is unsigned, 0 to 65535.  Past 65535 it wraps around to 0 or 1, as the client and server agreed.
+	 * @param packet The packet.
+	 * @return The 16 bit block number.
+	 */
+	private static int block(ByteBuffer packet) {
+		if (packet.remaining() < 4) return -1;
+		return (packet.get(2) & 0xff) << 8 | packet.get(3) & 0xff;
+	}
+
+	/**
+	 * Reads the block size an OACK agrees to.
+	 * @param packet The OACK.
+	 * @return The block size, or 512 if the OACK doesn't change it.
+	 */
+	private static int blksize(ByteBuffer packet) {
+		String[] fields = new String(packet.array(), packet.arrayOffset() + packet.position() + 2, packet.remaining() - 2,
+				StandardCharsets.US_ASCII).split("\0");
+
+		for (int i = 0; i + 1 < fields.length; i += 2) {
+			if (fields[i].equalsIgnoreCase("blksize")) try {
+				return Integer.parseInt(fields[i + 1]);
+			} catch (NumberFormatException e) {
+				break;
+			}
+		}
+
+		return 512;
+	}
+
+	/**
+	 * Session
+	 * A session is one client's path through the host: where the client is, the socket facing the server, and the
+	 * port of the server's side of the transfer once it has answered.
+	 */
+	private class Session {
+		private final SocketAddress client;
+		private final DatagramChannel upstream;
+		private SocketAddress server;
+		private long lastActive;
+		// The request of the transfer in progress, if it hasn't ended, and when it was first sent.
+		private ByteBuffer request;
+		private long requested;
+		// The block size of the transfer, so that its final block can be told apart.
+		private int blksize;
+
+		public Session(SocketAddress client) throws IOException {
+			this.client = client;
+
+			upstream = DatagramChannel.open();
+			upstream.setOption(StandardSocketOptions.SO_RCVBUF, socketBuffer);
+			upstream.bind(null);
+			upstream.configureBlocking(false);
+			upstream.register(selector, SelectionKey.OP_READ, this);
+			lastActive = System.nanoTime();
+		}
+
+		/**
+		 * Remembers the request starting the session's transfer.
+		 */
+		public void request(ByteBuffer packet) {
+			request = ByteBuffer.allocate(packet.remaining());
+			request.put(packet.duplicate()).flip();
+			requested = System.nanoTime();
+			blksize = 512;
+		}
+
+		/**
+		 * Watches a packet of the transfer for its end, a DATA packet shorter than the block size or an error other
+		 * than an unknown TID.  The request is forgotten then, so it isn't mistaken for a repeat if it's made again.
+		 */
+		public void observe(ByteBuffer packet) {
+			if (request == null || packet.remaining() < 4 || packet.get(0) != 0) return;
+
+			if (packet.get(1) == 3 && packet.remaining() - 4 < blksize) request = null;
+			else if (packet.get(1) == 5 && block(packet) != 5) request = null;
+			else if (packet.get(1) == 6) blksize = blksize(packet);
+		}
+
+		/**
+		 * @return True if the packet is the request of the transfer in progress again, sent within the retry window.
+		 */
+		public boolean repeats(ByteBuffer packet) {
+			return request != null && System.nanoTime() - requested < retryWindow_ms * 1000000L && request.equals(packet);
+		}
+
+		public void close() {
+			try {
+				upstream.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Impairment
+	 * What happens at random to every packet going one way through the host, like a poor network would do to it.
+	 * <p>
+	 * A profile is a list of settings separated by commas, any of:
+	 * loss=<chance> each packet is lost
+	 * burst=<p>:<r>[:<h>] losses come in bursts (Gilbert-Elliott): the chance of going from the good state to the bad
+	 * one, the chance of going back, and the loss in the bad state, default 1.  loss is then the loss in the good state
+	 * delay=<ms> every packet is held back, and jitter=<ms> by up to that much more or less
+	 * dist=uniform|normal the jitter is spread evenly, or normally with jitter as its standard deviation
+	 * dup=<chance> a packet is sent twice, each copy delayed on its own
+	 * reorder=<chance>[:<ms>] a packet is held back a further 10 ms, or as given, so the ones after it overtake it
+	 * corrupt=<chance> one bit of the packet is flipped
+	 * <p>
+	 * Chances are from 0 to 1.  For example: loss=0.01,delay=20,jitter=5
+	 */
+	private static class Impairment {
+		private final String profile;
+		private double loss, goodToBad, badToGood, badLoss = 1, duplicate, reorder, corrupt;
+		private double delay_ms, jitter_ms, reorder_ms = 10;
+		private boolean burst, normal, bad;
+		private long packets, lost, duplicated, reordered, corrupted;
+
+		public Impairment(String profile) {
+			this.profile = profile.trim();
+
+			for (String setting : this.profile.split(",")) {
+				String[] pair = setting.trim().split("=", 2);
+				String[] values = pair.length == 2 ? pair[1].split(":") : new String[0];
+
+				if (pair.length != 2) throw new IllegalArgumentException("Expected name=value: " + setting);
+
+				switch (pair[0].trim().toLowerCase()) {
+				case "loss": loss = chance(values[0]);
+				break;
+				case "burst": burst = true;
+				goodToBad = chance(values[0]);
+				badToGood = chance(values.length > 1 ? values[1] : "1");
+				if (values.length > 2) badLoss = chance(values[2]);
+				break;
+				case "delay": delay_ms = Math.max(0, Double.parseDouble(values[0]));
+				break;
+				case "jitter": jitter_ms = Math.max(0, Double.parseDouble(values[0]));
+				break;
+				case "dist": normal = values[0].equalsIgnoreCase("normal");
+				if (!normal && !values[0].equalsIgnoreCase("uniform")) {
+					throw new IllegalArgumentException("Unknown distribution: " + values[0]);
+				}
+				break;
+				case "dup": duplicate = chance(values[0]);
+				break;
+				case "reorder": reorder = chance(values[0]);
+				if (values.length > 1) reorder_ms = Math.max(0, Double.parseDouble(values[1]));
+				break;
+				case "corrupt": corrupt = chance(values[0]);
+				break;
+				default: throw new IllegalArgumentException("Unknown setting: " + pair[0]);
+				}
+			}
+		}
+
+		private static double chance(String value) {
+			double chance = Double.parseDouble(value);
+
+			if (chance < 0 || chance > 1) throw new IllegalArgumentException("Chances are from 0 to 1: " + value);
+			return chance;
+		}
+
+		/**
+		 * Moves the burst state on by a packet, and decides whether the packet is lost.
+		 */
+		public boolean lose(Random random) {
+			packets++;
+
+			if (burst) bad = bad ? random.nextDouble() >= badToGood : random.nextDouble() < goodToBad;
+			if (random.nextDouble() < (bad ? badLoss : loss)) {
+				lost++;
+				return true;
+			}
+			return false;
+		}
+
+		public boolean corrupt(Random random) {
+			if (corrupt == 0 || random.nextDouble() >= corrupt) return false;
+			corrupted++;
+			return true;
+		}
+
+		public boolean duplicate(Random random) {
+			if (duplicate == 0 || random.nextDouble() >= duplicate) return false;
+			duplicated++;
+			return true;
+		}
+
+		/**
+		 * @return How long to hold a packet back, in ns.
+		 */
+		public long delay(Random random) {
+			double ms = delay_ms;
+
+			if (jitter_ms > 0) ms += jitter_ms * (normal ? random.nextGaussian() : 2 * random.nextDouble() - 1);
+			if (reorder > 0 && random.nextDouble() < reorder) {
+				reordered++;
+				ms += reorder_ms;
+			}
+
+			return (long)(Math.max(0, ms) * 1000000L);
+		}
+
+		public String toString() {
+			return profile + "  (" + packets + " packets, " + lost + " lost, " + duplicated + " duplicated, " + reordered
+					+ " reordered, " + corrupted + " corrupted)";
+		}
 	}
 
-	/** Changes the opcode of the received packet to 15
-	 * @param pkt
-	 */
-	private byte[] changeOpcode(DatagramPacket pkt) {
-		byte[] data = pkt.getData();
-		data[0] = (byte)0;
-		if(errorReq == CHANGEOPCODECLIENT || errorReq==CHANGEOPCODESERVER)
-		{
-			data[1]=(byte)9;
-		}else{
-			data[1] = (byte)4;
+	/**
+	 * Link
+	 * A bottleneck one way through the host.  Packets wait in a queue for a token bucket to let them out at the link's
+	 * rate, then take the propagation delay to arrive.  A packet which finds the queue full is dropped (tail drop).
+	 * <p>
+	 * A link is a list of settings separated by commas, any of:
+	 * rate=<bits per second> with k, M or G for thousands, millions or billions, default unlimited
+	 * delay=<ms> the propagation delay, default 0
+	 * queue=<packets> the most packets waiting for the link, default 100
+	 * bucket=<bytes> the most the link sends at once after being idle, default 3000 or 2 ms at the rate if more
+	 * <p>
+	 * The host wakes up about once a ms at most, so a bucket smaller than a ms at the rate holds the link below it.
+	 * <p>
+	 * Sizes count 28 bytes of IP and UDP headers a packet.  For example, a 10 Mbit WAN with a 40 ms round trip is
+	 * rate=10M,delay=20 each way.
+	 */
+	private static class Link {
+		private static final int overhead = 28;
+
+		private final String profile;
+		private final ArrayDeque<Delayed> queue;
+		private double rate_Bpns, bucket, tokens;
+		private long delay_ns, lastFill;
+		private int limit = 100;
+		private long arrived, sent, dropped, occupancy;
+		private int peak;
+
+		public Link(String profile) {
+			this.profile = profile.trim();
+
+			for (String setting : this.profile.split(",")) {
+				String[] pair = setting.trim().split("=", 2);
+
+				if (pair.length != 2) throw new IllegalArgumentException("Expected name=value: " + setting);
+
+				switch (pair[0].trim().toLowerCase()) {
+				case "rate": rate_Bpns = rate(pair[1].trim()) / 8e9;
+				break;
+				case "delay": delay_ns = (long)(Math.max(0, Double.parseDouble(pair[1])) * 1000000L);
+				break;
+				case "queue": limit = Math.max(1, Integer.parseInt(pair[1].trim()));
+				break;
+				case "bucket": bucket = Math.max(1, Double.parseDouble(pair[1]));
+				break;
+				default: throw new IllegalArgumentException("Unknown setting: " + pair[0]);
+				}
+			}
+
+			if (bucket == 0) bucket = Math.max(3000, 2000000L * rate_Bpns);
+			queue = new ArrayDeque<Delayed>(limit);
+			tokens = bucket;
+			lastFill = System.nanoTime();
+		}
+
+		/**
+		 * @return The rate in bits per second, read with an optional k, M or G.
+		 */
+		private static double rate(String value) {
+			char unit = Character.toUpperCase(value.charAt(value.length() - 1));
+			double scale = unit == 'K' ? 1e3 : unit == 'M' ? 1e6 : unit == 'G' ? 1e9 : 1;
+
+			if (scale != 1) value = value.substring(0, value.length() - 1);
+			return Double.parseDouble(value) * scale;
+		}
+
+		/**
+		 * Queues a copy of a packet, unless the queue is full.
+		 * @return False if the packet was dropped.
+		 */
+		public boolean offer(ByteBuffer packet, DatagramChannel via, SocketAddress to) {
+			ByteBuffer copy;
+
+			arrived++;
+			occupancy += queue.size();
+
+			if (queue.size() >= limit) {
+				dropped++;
+				return false;
+			}
+
+			copy = ByteBuffer.allocate(packet.remaining());
+			copy.put(packet).flip();
+			queue.add(new Delayed(0, copy, via, to, 0));
+			peak = Math.max(peak, queue.size());
+			return true;
 		}
-		return data;
-	}
-	private void changeMode(){
-		byte[] data = rcvPkt1.getData();
-		byte[] newmode = invalidMode.getBytes();
-		int i = 2;
-		while (data[i] != 0x00 && i < rcvPkt1.getLength()) {
-			i++;
+
+		/**
+		 * Takes the packet at the head of the queue if the bucket has the tokens for it.  A packet larger than the
+		 * bucket goes as soon as the bucket isn't in debt, leaving it in debt by the difference.
+		 * @return The packet, or null if the queue is empty or the link is busy.
+		 */
+		public Delayed next(long now) {
+			Delayed packet = queue.peek();
+
+			if (packet == null) return null;
+
+			if (rate_Bpns > 0) {
+				tokens = Math.min(bucket, tokens + (now - lastFill) * rate_Bpns);
+				lastFill = now;
+				if (tokens < Math.min(bucket, packet.data.remaining() + overhead)) return null;
+				tokens -= packet.data.remaining() + overhead;
+			}
+
+			sent++;
+			return queue.poll();
 		}
-		i++;
-		int j =0;
-	
-		while (data[i] != 0x00 && i < rcvPkt1.getLength() && j < "netascii".length()) {
-			data[i++] = newmode[j++]; 
-			
-			
+
+		/**
+		 * @return How long until the packet at the head of the queue can go, in ns, or a long time if none is waiting.
+		 */
+		public long untilNext(long now) {
+			Delayed packet = queue.peek();
+			double needed;
+
+			if (packet == null) return Long.MAX_VALUE;
+			if (rate_Bpns == 0) return 0;
+
+			needed = Math.min(bucket, packet.data.remaining() + overhead) - tokens - (now - lastFill) * rate_Bpns;
+			return needed <= 0 ? 0 : (long)Math.ceil(needed / rate_Bpns);
 		}
-		rcvPkt1.setData(data);
-	
-	}
-	private void setTarget() {
-		String ip;
-		Scanner stream = new Scanner(System.in);
-		System.out.println("Enter the target IP address: ");
-		ip = stream.nextLine();
 
-		try {
-			target1 = InetAddress.getByName(ip);
-		} catch (UnknownHostException e) {
-			System.out.println("Invalid IP.");
+		public String toString() {
+			return profile + "  (" + arrived + " packets, " + sent + " sent, " + dropped + " dropped, queue " + queue.size()
+					+ " now, " + peak + " at most, " + String.format("%.1f", arrived > 0 ? (double)occupancy / arrived : 0.0)
+					+ " on average)";
 		}
 	}
+
 	/**
-	 * Changes the length of the packet to 530 bytes
+	 * TimerWheel
+	 * Holds delayed packets until they're due, at a resolution of a ms (a hashed timing wheel).
+	 * <p>
+	 * The wheel has a slot for every ms of a second, and a packet goes in the slot of the ms it's due in.  Adding a
+	 * packet and releasing it take the same time however many are held, so thousands can be in flight at once.  Every
+	 * ms the wheel turns one slot on and releases what is due in it.  A packet due more than a turn away waits in its
+	 * slot for as many turns, and is passed over until then.  Packets are released in the ms they're due, never early,
+	 * and those due in the same ms in the order they were added.
 	 */
-	private byte[] changeLength(DatagramPacket pkt) {
-		int i = 0;
-		byte[] data = new byte[530];
+	private static class TimerWheel {
+		private static final long tick_ns = 1000000L;
+		private static final int slots = 1024;
+		private static final int mask = slots - 1;
 
+		// The packets in each slot, as a list linked through Delayed.next, and the last packet of each.
+		private final Delayed[] heads = new Delayed[slots], tails = new Delayed[slots];
+		private final long origin;
+		// The last tick released, counting ticks from the origin.
+		private long cursor;
+		private int size;
 
-		while (i < pkt.getLength())
-		{
+		public TimerWheel() {
+			origin = System.nanoTime();
+		}
 
-			data[i]= pkt.getData()[i++];
+		private long tick(long ns) {
+			return (ns - origin + tick_ns - 1) / tick_ns;
 		}
 
-		while (i < 530) data[i++] = 0x05;
+		/**
+		 * Adds a packet, to be released in the tick its due time falls in, or in the next if that has gone.
+		 */
+		public void add(Delayed packet) {
+			int slot;
 
-		return data;
-	}
+			packet.tick = Math.max(cursor + 1, tick(packet.due));
+			packet.next = null;
+			slot = (int)packet.tick & mask;
 
-	/**
-	 * Sends data from the given packet through the given socket.
-	 * @param pkt
-	 * @param sock
-	 */
-	private void send(DatagramPacket pkt, DatagramSocket sock) {
-		try {
-			sock.send(pkt);
-		} catch (IOException e) {
-			e.printStackTrace();
+			if (heads[slot] == null) heads[slot] = packet;
+			else tails[slot].next = packet;
+			tails[slot] = packet;
+			size++;
 		}
-	}
-
-	/**
-	 * Closes the sockets and exits.
-	 */
-	private void quit() {
-		if (verbose) System.out.println("Closing port 23");
-		port23.close();
-		if (verbose) System.out.println("Closing sndSok");
-		sndSok.close();
-		if (verbose) System.out.println("Closing sndRcvSok");
-		sndRcvSok.close();
 
-		System.out.println("Exiting");
-		System.exit(0);
-	}
+		/**
+		 * Releases the packets due by now, a tick at a time.
+		 * @param release Given each packet due, after it has been taken off the wheel.
+		 */
+		public void expire(long now, Consumer<Delayed> release) {
+			long until = (now - origin) / tick_ns;
 
+			if (size == 0 || until - cursor > slots) {
+				// Nothing to release, or the loop has been away so long that every slot needs a look: a full turn does.
+				if (size != 0) for (int i = 0; i < slots; i++) expire(i, until, release);
+				cursor = Math.max(cursor, until);
+				return;
+			}
 
-	private void delay(int ms){
-		try {
-			Thread.sleep(ms);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+			while (cursor < until) expire((int)++cursor & mask, cursor, release);
 		}
 
-	}
-	public boolean isReset() {
-		boolean reset = this.reset;
-		this.reset = false;
+		/**
+		 * Releases the packets in a slot due by the given tick, and keeps the rest in order.
+		 */
+		private void expire(int slot, long until, Consumer<Delayed> release) {
+			Delayed packet = heads[slot], first = null, last = null, next;
 
-		return reset;
-	}
+			heads[slot] = tails[slot] = null;
 
-	/**
-	 * Receives data from the client.
-	 * <p>
-	 * Listens on port 23 for a request.
-	 */
-	public void rcvP23() {
-		rcvPkt1 = new DatagramPacket(new byte[receiveLength], receiveLength);
+			for (; packet != null; packet = next) {
+				next = packet.next;
+				packet.next = null;
 
-		if (verbose) System.out.print("Listening on ");
-		if (verbose) System.out.println(port23.getLocalPort());
+				if (packet.tick <= until) {
+					size--;
+					release.accept(packet);
+				} else {
+					if (first == null) first = packet;
+					else last.next = packet;
+					last = packet;
+				}
+			}
 
-		receive(rcvPkt1, port23);
+			if (first == null) return;
 
-		if (errorReq==CHANGEMODE){
-		changeMode();
-		errorReq=NORMAL;
+			// Anything added to the slot while it was being released goes after what was kept.
+			last.next = heads[slot];
+			if (heads[slot] == null) tails[slot] = last;
+			heads[slot] = first;
 		}
-		if (verbose) {
-			System.out.println("Client ");
-			System.out.print("Opcode ");
-			System.out.println(new Integer(rcvPkt1.getData()[1]));
-			System.out.println(new String(rcvPkt1.getData()));
+
+		/**
+		 * @return How long until the next tick, in ns, if any packet is held, or a long time if none is.
+		 */
+		public long untilNext(long now) {
+			if (size == 0) return Long.MAX_VALUE;
+			return origin + (cursor + 1) * tick_ns - now;
 		}
 	}
 
 	/**
-	 * Receives data from the client.
+	 * Capture
+	 * A file recording every packet the host receives: when it arrived, which way it was going, the client and the
+	 * server, the faults the host applied to it, and the packet as it arrived.
+	 * <p>
+	 * The file is written through a memory mapping, a chunk at a time, so recording a packet is a copy into memory and
+	 * the operating system writes it out.  Records are only ever added to the end.  The direction of each record is
+	 * written last, once its faults are known, so a capture cut off by a crash ends cleanly at the last whole record.
 	 * <p>
-	 * Listens on TID port for data.
+	 * The file starts with "RTCSCAP1" and the time the capture started, in ms since 1970.  Then, for every packet:
+	 *   byte: 1 from a client, 2 from the server, or 0 where the capture ends
+	 *   short: the faults, the error simulated (0 to 15) plus any of LOST, CORRUPTED, DUPLICATED, DELAYED and DROPPED
+	 *   long: ns since the capture started
+	 *   the client's address, then the server's: byte length, the address, short port
+	 *   short: the length of the packet, unsigned, and then the packet
+	 * <p>
+	 * Packets are recorded as they reach the host, so link queues dropping them later isn't recorded: the links count
+	 * their own drops.
 	 */
-	public void receive1() {
-		rcvPkt1 = new DatagramPacket(new byte[receiveLength], receiveLength);
+	private static class Capture {
+		public static final int LOST = 0x10;
+		public static final int CORRUPTED = 0x20;
+		public static final int DUPLICATED = 0x40;
+		public static final int DELAYED = 0x80;
+		public static final int DROPPED = 0x100;
 
-		if (verbose) System.out.print("Listening on ");
-		if (verbose) System.out.println(sndSok.getLocalPort());
+		private static final byte[] magic = "RTCSCAP1".getBytes();
+		private static final int chunk = 16 * 1024 * 1024;
+		// Enough for the largest record: the header, two IPv6 addresses and the largest packet.
+		private static final int maxRecord = 11 + 2 * 19 + 2 + receiveLength;
 
-		receive(rcvPkt1, sndSok);
+		private final FileChannel file;
+		private final long start;
+		private MappedByteBuffer map;
+		// Where in the file the chunk mapped starts, and where in it the record waiting to be committed is.
+		private long mapped;
+		private int pending = -1;
+		private byte direction;
+		private boolean closed;
+		private long records;
 
-		if (verbose) {
-			System.out.println("Client ");
-			System.out.print("Opcode ");
-			System.out.println(new Integer(rcvPkt1.getData()[1]));
-			System.out.println(new String(rcvPkt1.getData()));
-			System.out.print("Block ");
-			System.out.println(0xff & rcvPkt1.getData()[3] + 256 * (0xff & rcvPkt1.getData()[2]));
-			System.out.println();
+		public Capture(String name) throws IOException {
+			file = FileChannel.open(Paths.get(name), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			map = file.map(FileChannel.MapMode.READ_WRITE, 0, chunk);
+			map.put(magic).putLong(System.currentTimeMillis());
+			start = System.nanoTime();
 		}
-	}
 
-	/**
-	 * Receives a reply from the server.
-	 * <p>
-	 * Listens for a reply on the socket used to forward data to the server.
-	 */
-	public void receive2() {
-		rcvPkt2 = new DatagramPacket(new byte[receiveLength], receiveLength);
+		/**
+		 * Writes a packet's record, all but its direction and faults.  Nothing else may be recorded until it's
+		 * committed.
+		 * @param time When the packet arrived, from System.nanoTime().
+		 */
+		public synchronized void record(long time, boolean fromClient, SocketAddress client, SocketAddress server,
+				ByteBuffer packet) {
+			if (closed) return;
+
+			try {
+				if (map.remaining() < maxRecord + 1) {
+					mapped += map.position();
+					map = file.map(FileChannel.MapMode.READ_WRITE, mapped, chunk);
+				}
+			} catch (IOException e) {
+				// Out of disk, most likely.  The capture ends with the last record.
+				e.printStackTrace();
+				close();
+				return;
+			}
+
+			pending = map.position();
+			direction = (byte)(fromClient ? 1 : 2);
+			map.put((byte)0).putShort((short)0).putLong(time - start);
+			put(client);
+			put(server);
+			map.putShort((short)packet.remaining()).put(packet.duplicate());
+		}
+
+		private void put(SocketAddress endpoint) {
+			InetSocketAddress address = (InetSocketAddress)endpoint;
+			byte[] ip = address.getAddress().getAddress();
+
+			map.put((byte)ip.length).put(ip).putShort((short)address.getPort());
+		}
+
+		/**
+		 * Completes the record written last.
+		 * @param faults The faults applied to the packet.
+		 */
+		public synchronized void commit(int faults) {
+			if (closed || pending < 0) return;
+
+			map.putShort(pending + 1, (short)faults);
+			map.put(pending, direction);
+			pending = -1;
+			records++;
+		}
 
-		if (verbose) System.out.print("Listening on ");
-		if (verbose) System.out.println(sndRcvSok.getLocalPort());
+		/**
+		 * Ends the capture, cutting the file back to the records in it.
+		 */
+		public synchronized void close() {
+			if (closed) return;
+			closed = true;
 
-		receive(rcvPkt2, sndRcvSok);
-		if (verbose) {
-			System.out.println("Server ");
-			System.out.print("Opcode ");
-			System.out.println(new Integer(rcvPkt2.getData()[1]));
-			System.out.println(new String(rcvPkt2.getData()));
-			System.out.print("Block ");
-			System.out.println(0xff & rcvPkt2.getData()[3] + 256 * (0xff & rcvPkt2.getData()[2]));
-			System.out.println();
+			try {
+				map.force();
+				// Windows won't shorten a file while it is mapped, so there the capture ends in zeros, which read as its end.
+				try {
+					file.truncate(mapped + (pending >= 0 ? pending : map.position()));
+				} catch (IOException e) {
+				}
+				file.close();
+				System.out.println("Captured " + records + " packets.");
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 	}
 
 	/**
-	 * Forwards the request from the client to the server.
+	 * Replay
+	 * Sends the packets clients sent in a capture to a server again, at the pace they were captured or faster, to see
+	 * how the server does with real traffic.
 	 * <p>
-	 * Should not be called before receive1().
+	 * Every client in the capture gets a socket of its own.  Its requests go to the server's port, and its other
+	 * packets to the port the server answered the request from, as the host does.  The server's packets in the capture
+	 * aren't sent: the server's own answers are counted instead.  The packets the host lost or dropped while capturing
+	 * are left out, so the server gets the packets it got then.  A packet due before the server has answered its
+	 * client's request has nowhere to go, and is skipped.
+	 * <p>
+	 * The packets go at their captured times, whatever the server answers, so a faster replay sends acknowledges for
+	 * blocks ahead of the server.  The server treats them as it would from any client running ahead of it.
 	 */
-	public void forward() {
+	private static class Replay {
+		private final FileChannel file;
+		private final long size;
+		private final InetSocketAddress server;
+		private final double speed;
+		private final Selector selector;
+		private final HashMap<String, ReplayClient> clients;
+		private final ByteBuffer buf;
+		private MappedByteBuffer map;
+		private long mapped;
+		private long sent, skipped, early, received, receivedBytes, lastReceived;
+		private long[] opcodes;
 
-		DatagramSocket errorSocket;
-		clientPkt--;
-		if ((errorReq == CHANGEOPCODECLIENT || errorReq == CHANGEOPCODECLIENTv) && clientPkt ==0) {
-			byte[] data = changeOpcode(rcvPkt1);
-			rcvPkt1.setData(data);
-			errorReq = NORMAL;
-		} else if (errorReq == CHANGELENGTHCLIENT &&clientPkt ==0) {
-			byte[] data = changeLength(rcvPkt1);
-			rcvPkt1.setData(data);
-			errorReq = NORMAL;
+		public Replay(String name, InetSocketAddress server, double speed) throws IOException {
+			byte[] header = new byte[Capture.magic.length];
+
+			file = FileChannel.open(Paths.get(name), StandardOpenOption.READ);
+			size = file.size();
+			this.server = server;
+			this.speed = speed > 0 ? speed : 1;
+			selector = Selector.open();
+			clients = new HashMap<String, ReplayClient>();
+			buf = ByteBuffer.allocate(receiveLength);
+			opcodes = new long[7];
+
+			map(0);
+			if (size >= header.length + 8) map.get(header);
+			if (!Arrays.equals(header, Capture.magic)) throw new IOException(name + " is not a capture.");
+			map.getLong();
 		}
-		sndPkt = new DatagramPacket(rcvPkt1.getData(), rcvPkt1.getLength(), target1, targetPort);
-		// Save the client IP and port to send the server's response.
-		target2 = rcvPkt1.getAddress();
-		returnPort = rcvPkt1.getPort();
 
+		private void map(long at) throws IOException {
+			mapped = at;
+			map = file.map(FileChannel.MapMode.READ_ONLY, at, Math.min(Capture.chunk, size - at));
+		}
 
-		if (errorReq == CHANGETIDCLIENT && clientPkt==0) {
-			try {
-				errorSocket = new DatagramSocket();
-				send(sndPkt, errorSocket);
-				errorSocket.close();
-				errorReq = NORMAL;
-				if (sndPkt.getData()[1] == (byte)0x03) {
-					receive1();
-					send(sndPkt, sndRcvSok);
+		/**
+		 * Replays the capture, waits for the server to go quiet, and prints what was sent and what came back.
+		 */
+		public void run() throws IOException {
+			long begin = System.nanoTime(), first = -1, last = 0, end;
+
+			while (true) {
+				if (map.remaining() < Capture.maxRecord + 1 && mapped + map.position() < size) {
+					map(mapped + map.position());
+				}
+				if (!map.hasRemaining()) break;
+
+				byte direction = map.get();
+				if (direction == 0) break;
+
+				int faults = map.getShort();
+				long time = map.getLong();
+				InetSocketAddress client = endpoint(), from = endpoint();
+				int length = map.getShort() & 0xffff;
+				ByteBuffer packet = map.slice().limit(length);
+
+				map.position(map.position() + length);
+				last = time;
+				if (direction != 1) continue;
+				if ((faults & (Capture.LOST | Capture.DROPPED)) != 0) {
+					skipped++;
+					continue;
 				}
-				else if (sndPkt.getData()[1] == (byte) 0x04) return;
-			} catch (SocketException e) {
 
+				// Paced from the first packet sent, so the quiet before it in the capture doesn't count.
+				if (first < 0) first = time;
+				waitUntil(begin + (long)((time - first) / speed));
+				send(client, packet);
 			}
-		} else { 
-			if(errorReq == DELAYCLIENT || errorReq == DUPLICATECLIENTPKT ||errorReq == LOSECLIENTPKT) {
-				packetNum--;
+
+			// Let the server finish answering, until it has been quiet for 2 s.
+			end = lastReceived = System.nanoTime();
+			while (System.nanoTime() - lastReceived < 2000000000L) waitUntil(System.nanoTime() + 100000000L);
+
+			report((Math.max(end, lastReceived) - begin) / 1e9, (last - Math.max(first, 0)) / 1e9);
+		}
+
+		private InetSocketAddress endpoint() throws IOException {
+			byte[] ip = new byte[map.get()];
+
+			map.get(ip);
+			return new InetSocketAddress(InetAddress.getByAddress(ip), map.getShort() & 0xffff);
+		}
+
+		/**
+		 * Waits until the given time, counting the server's answers meanwhile.
+		 */
+		private void waitUntil(long due) throws IOException {
+			long left;
+
+			while ((left = due - System.nanoTime()) > 2000000L) {
+				selector.select(left / 1000000L - 1);
+				receive();
 			}
-			if(errorReq == DELAYCLIENT&&packetNum ==0) {
-				delay(delay);
-				errorReq=NORMAL;
+			while (due - System.nanoTime() > 0) receive();
+			receive();
+		}
+
+		private void send(InetSocketAddress client, ByteBuffer packet) throws IOException {
+			ReplayClient replay = clients.get(client.toString());
+
+			if (replay == null) {
+				replay = new ReplayClient();
+				clients.put(client.toString(), replay);
 			}
 
-			if(errorReq==LOSECLIENTPKT &&packetNum == 0){
-				errorReq=NORMAL;
-				if (rcvPkt1.getData()[1] <= (byte)0x03) receive1();
-				else if (rcvPkt1.getData()[1] == 0x04) return;
+			if (isRequest(packet)) {
+				replay.server = null;
+				replay.channel.send(packet, server);
+			} else if (replay.server != null) {
+				replay.channel.send(packet, replay.server);
+			} else {
+				early++;
+				return;
 			}
+			sent++;
+		}
 
-			send(sndPkt, sndRcvSok);
+		/**
+		 * Counts every answer from the server waiting, and notes which port each client's transfer is on.
+		 */
+		private void receive() throws IOException {
+			Iterator<SelectionKey> keys;
 
-			if (errorReq == DUPLICATECLIENTPKT&&packetNum ==0)
-			{
-				delay(delay);
-				send(sndPkt, sndRcvSok);
-				errorReq = NORMAL;
+			selector.selectNow();
+			keys = selector.selectedKeys().iterator();
 
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				ReplayClient replay = (ReplayClient)key.attachment();
+				SocketAddress from;
+
+				keys.remove();
+				while ((from = replay.channel.receive(buf)) != null) {
+					buf.flip();
+					if (replay.server == null) replay.server = from;
+					received++;
+					receivedBytes += buf.remaining();
+					if (buf.remaining() > 1 && buf.get(1) > 0 && buf.get(1) < opcodes.length) opcodes[buf.get(1)]++;
+					lastReceived = System.nanoTime();
+					buf.clear();
+				}
 			}
+		}
+
+		private void report(double seconds, double captured) {
+			System.out.printf("Replayed %d packets from %d clients in %.3f s, captured over %.3f s (%.1fx)%n", sent,
+					clients.size(), seconds, captured, speed);
+			System.out.println("Skipped: " + skipped + " lost or dropped by the host, " + early
+					+ " due before the server had answered");
+			System.out.printf("Server sent %d packets, %d bytes (%.3f MB/s): %d DATA, %d ACK, %d ERROR, %d OACK%n",
+					received, receivedBytes, seconds > 0 ? receivedBytes / seconds / 1e6 : 0, opcodes[3], opcodes[4],
+					opcodes[5], opcodes[6]);
+		}
+
+		/**
+		 * ReplayClient
+		 * The socket a client of the capture is replayed from, and the port of the server's side of its transfer.
+		 */
+		private class ReplayClient {
+			private final DatagramChannel channel;
+			private SocketAddress server;
 
+			public ReplayClient() throws IOException {
+				channel = DatagramChannel.open();
+				channel.bind(null);
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ, this);
+			}
 		}
 	}
 
 	/**
-	 * Sends the server's reply to the client.
+	 * Scenario
+	 * A timeline of faults and impairments read from a file, applied as the host runs without using the console.
+	 * The traffic is counted in phases, each from one step of the timeline to the next, and the throughput of each
+	 * phase is printed as it ends, and all of them when the host quits.
 	 * <p>
-	 * Should not be called before receive2().
+	 * Each line of the file is a step, "at <when> <action>", and # starts a comment.  When is one of:
+	 *   <n>s or <n>ms  that long after the first packet reaches the host.  Steps at 0s are applied at once
+	 *   block <n>  when the first DATA packet numbered n reaches the host, before it is forwarded
+	 * The actions are:
+	 *   client <profile>, server <profile>  impair the packets from clients or the server, or none for no impairment
+	 *   clientlink <link>, serverlink <link>  set the link of the packets from clients or the server, or none
+	 *   seed <n>  seed the impairments again
+	 *   lose, delay <ms>, duplicate <ms>, opcode, validopcode, length or tid, each followed by client or server:
+	 *     simulate that error on the next packet from the client or the server
+	 *   mode  simulate an invalid mode on the next request
+	 *   capture <file>  start a capture, or none to stop it
+	 *   end  print the phases and quit
+	 * For example:
+	 *   at 5s server loss=0.02
+	 *   at block 1000 duplicate server 50
+	 *   at 30s end
 	 */
-	public void forwardReply() {
-		DatagramSocket errorSocket;
-		serverPkt--;
+	private class Scenario {
+		// The steps by time, soonest first, and the steps by block, in the order they're in the file.
+		private final ArrayList<Step> timed, blocks;
+		private final ArrayList<Phase> phases;
+		private Phase phase;
+		// When the first packet arrived, from which the time of a step counts, or -1 until then.
+		private long start = -1;
+		private int next;
 
-		if ((errorReq == CHANGEOPCODESERVER || errorReq == CHANGEOPCODESERVERv) && serverPkt ==0) {
-			byte[] data = changeOpcode(rcvPkt2);
-			rcvPkt2.setData(data);
-			errorReq = NORMAL;
-		} else if (errorReq == CHANGELENGTHSERVER &&serverPkt==0) {
-			byte[] data = changeLength(rcvPkt1);
-			rcvPkt1.setData(data);
-			errorReq = NORMAL;
+		public Scenario(String file) throws IOException {
+			String line;
+			int number = 0;
+
+			timed = new ArrayList<Step>();
+			blocks = new ArrayList<Step>();
+			phases = new ArrayList<Phase>();
+
+			try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+				while ((line = in.readLine()) != null) {
+					number++;
+					if (line.indexOf('#') >= 0) line = line.substring(0, line.indexOf('#'));
+					line = line.trim();
+					if (line.isEmpty()) continue;
+
+					try {
+						step(line);
+					} catch (RuntimeException e) {
+						throw new IllegalArgumentException("Line " + number + " of " + file + ": " + e.getMessage(), e);
+					}
+				}
+			}
+
+			timed.sort((a, b) -> Long.compare(a.at, b.at));
+			phase = new Phase("start", System.nanoTime());
+			phases.add(phase);
 		}
 
-		sndPkt = new DatagramPacket(rcvPkt2.getData(), rcvPkt2.getLength(), target2, returnPort);
+		/**
+		 * Reads a step and adds it to the timeline.
+		 */
+		private void step(String line) {
+			String[] words = line.split("\\s+", 4);
+			boolean block = words.length > 1 && words[1].equalsIgnoreCase("block");
+			String[] action;
 
-		targetPort = rcvPkt2.getPort();
-		if (errorReq == CHANGETIDSERVER && serverPkt==0) {
-			try {
-				errorSocket = new DatagramSocket();
-				send(sndPkt, errorSocket);
-				System.out.println("New port: " + errorSocket.getLocalPort());
-				errorSocket.close();
-				errorReq = NORMAL;
-				if (sndPkt.getData()[1] == (byte)0x03) receive2();
-				else if (sndPkt.getData()[1] == (byte) 0x04) return;
-			} catch (SocketException e) {
+			if (words.length < 3 || !words[0].equalsIgnoreCase("at")) throw new IllegalArgumentException("Expected at <when> <action>");
+
+			action = line.split("\\s+", block ? 4 : 3);
+			action = action[action.length - 1].split("\\s+", 2);
+
+			if (block) blocks.add(new Step(Integer.parseInt(words[2]), -1, action(action), line));
+			else timed.add(new Step(-1, time(words[1]), action(action), line));
+		}
+
+		/**
+		 * @return The time given, in ns.
+		 */
+		private long time(String when) {
+			when = when.toLowerCase();
+
+			if (when.endsWith("ms")) return (long)(Double.parseDouble(when.substring(0, when.length() - 2)) * 1e6);
+			if (when.endsWith("s")) return (long)(Double.parseDouble(when.substring(0, when.length() - 1)) * 1e9);
+			return (long)(Double.parseDouble(when) * 1e9);
+		}
+
+		/**
+		 * Reads an action, checking what it sets, and returns what it does.
+		 * @param action The action's name, and the rest of the step after it.
+		 */
+		private Runnable action(String[] action) {
+			String name = action[0].toLowerCase();
+			String rest = action.length > 1 ? action[1].trim() : "";
+			String setting = rest.equalsIgnoreCase("none") ? "" : rest;
+			String[] args = rest.split("\\s+");
+			boolean client = args[0].equalsIgnoreCase("client");
+			int ms;
 
+			switch (name) {
+			case "client":
+			case "server":
+				if (!setting.isEmpty()) new Impairment(setting);
+				return () -> setImpairment(name.equals("client"), setting);
+			case "clientlink":
+			case "serverlink":
+				if (!setting.isEmpty()) new Link(setting);
+				return () -> setLink(name.equals("clientlink"), setting);
+			case "seed":
+				long seed = Long.parseLong(rest);
+				return () -> setSeed(seed);
+			case "capture":
+				return () -> {
+					try {
+						setCapture(setting.isEmpty() ? null : setting);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				};
+			case "mode":
+				return () -> errorReq = CHANGEMODE;
+			case "end":
+				return () -> quit();
 			}
-		} else {
-			if(errorReq == DELAYSERVER || errorReq == DUPLICATESERVERPKT ||errorReq == LOSESERVERPKT)
-			{
-				packetNum--;
+
+			if (!client && !args[0].equalsIgnoreCase("server")) throw new IllegalArgumentException("Expected client or server: " + rest);
+
+			switch (name) {
+			case "lose": return () -> error(client ? LOSECLIENTPKT : LOSESERVERPKT, 0);
+			case "delay":
+				ms = Integer.parseInt(args[1]);
+				return () -> error(client ? DELAYCLIENT : DELAYSERVER, ms);
+			case "duplicate":
+				ms = Integer.parseInt(args[1]);
+				return () -> error(client ? DUPLICATECLIENTPKT : DUPLICATESERVERPKT, ms);
+			case "opcode": return () -> error(client ? CHANGEOPCODECLIENT : CHANGEOPCODESERVER, 0);
+			case "validopcode": return () -> error(client ? CHANGEOPCODECLIENTv : CHANGEOPCODESERVERv, 0);
+			case "length": return () -> error(client ? CHANGELENGTHCLIENT : CHANGELENGTHSERVER, 0);
+			case "tid": return () -> error(client ? CHANGETIDCLIENT : CHANGETIDSERVER, 0);
+			default: throw new IllegalArgumentException("Unknown action: " + name);
+			}
+		}
+
+		/**
+		 * Sets an error to be simulated on the next packet its way, as the console does for packet 1.
+		 */
+		private void error(int error, int ms) {
+			delay = ms;
+			packetNum = 1;
+			clientPkt = 1;
+			serverPkt = 1;
+			errorReq = error;
+		}
+
+		/**
+		 * Applies the steps whose time has come.
+		 */
+		public void tick(long now) {
+			while (next < timed.size() && (timed.get(next).at == 0 || start >= 0 && now - start >= timed.get(next).at)) {
+				apply(timed.get(next++), now);
+			}
+		}
+
+		/**
+		 * @return How long until the next timed step, in ns, or a long time if there isn't one yet.
+		 */
+		public long untilNext(long now) {
+			if (next >= timed.size() || start < 0) return Long.MAX_VALUE;
+			return start + timed.get(next).at - now;
+		}
+
+		/**
+		 * Counts a packet just received, after applying the steps it brings on.
+		 */
+		public void observe(long now, boolean fromClient, ByteBuffer packet) {
+			int length = packet.remaining();
+
+			if (start < 0) {
+				// The timeline, and the first phase, start with the traffic.
+				start = now;
+				phase.start = now;
 			}
-			if(errorReq == DELAYSERVER&& packetNum ==0){
-				delay(delay);
-				errorReq=NORMAL;
+			tick(now);
+
+			if (length >= 4 && packet.get(1) == 3) {
+				int number = block(packet);
+
+				for (Step step : blocks) if (step.block == number && !step.done) apply(step, now);
+				phase.data += length - 4;
 			}
-			if(errorReq==LOSESERVERPKT &&packetNum==0){
-				errorReq=NORMAL;
-				if (rcvPkt2.getData()[1] == (byte)0x03) receive2();
-				else if (rcvPkt2.getData()[1] == (byte)0x04) return;
+
+			phase.packets[fromClient ? 0 : 1]++;
+			phase.bytes[fromClient ? 0 : 1] += length;
+		}
+
+		/**
+		 * Applies a step, which starts a new phase.  A phase with no packets yet takes the step into it instead.
+		 */
+		private void apply(Step step, long now) {
+			step.done = true;
+			System.out.println("Scenario: " + step.text);
+
+			if (phase.packets[0] + phase.packets[1] == 0) {
+				phase.name = phase.name.equals("start") ? step.text : phase.name + "; " + step.text;
+			} else {
+				phase.end = now;
+				System.out.println(phase);
+				phase = new Phase(step.text, now);
+				phases.add(phase);
 			}
 
-			send(sndPkt, sndSok);
+			step.action.run();
+		}
 
-			if(errorReq == DUPLICATESERVERPKT &&packetNum == 0){
-				delay(delay);
-				send(sndPkt, sndSok);
-				errorReq = NORMAL;
+		/**
+		 * Prints every phase so far, the last up to now.
+		 */
+		public void report() {
+			phase.end = System.nanoTime();
+			System.out.println("Phases:");
+			for (Phase phase : phases) {
+				// The phase an end step starts has nothing in it.
+				if (phase.packets[0] + phase.packets[1] > 0 || phases.size() == 1) System.out.println(phase);
+			}
+		}
+
+		/**
+		 * Step
+		 * A step of the timeline: when it comes, what it does, and whether it has been done.
+		 */
+		private class Step {
+			private final int block;
+			private final long at;
+			private final Runnable action;
+			private final String text;
+			private boolean done;
+
+			public Step(int block, long at, Runnable action, String text) {
+				this.block = block;
+				this.at = at;
+				this.action = action;
+				this.text = text;
 			}
+		}
+	}
+
+	/**
+	 * Phase
+	 * The traffic through the host during a phase of a scenario.
+	 */
+	private static class Phase {
+		private String name;
+		private long start, end;
+		// Packets and bytes from clients, then from the server.
+		private final long[] packets = new long[2], bytes = new long[2];
+		// The bytes of file data in DATA packets either way, and the packets lost or dropped.
+		private long data, lost;
+
+		public Phase(String name, long start) {
+			this.name = name;
+			this.start = start;
+		}
+
+		public String toString() {
+			double seconds = Math.max(end - start, 0) / 1e9;
 
+			return String.format("  %-40s %8.3f s  client %d packets %d bytes  server %d packets %d bytes  lost %d  "
+					+ "data %d bytes, %.3f MB/s", name, seconds, packets[0], bytes[0], packets[1], bytes[1], lost, data,
+					seconds > 0 ? data / seconds / 1e6 : 0);
+		}
+	}
+
+	/**
+	 * Delayed
+	 * A packet held back, when to send it, and which link it goes on to when it's due.
+	 */
+	private static class Delayed {
+		private long due;
+		private final ByteBuffer data;
+		private final DatagramChannel via;
+		private final SocketAddress to;
+		// 1 for the link of the packets from clients, 2 for the server's, 0 to send the packet straight out.
+		private final int link;
+		// The tick of the timer wheel the packet is released in, and the next packet in its slot.
+		private long tick;
+		private Delayed next;
+
+		public Delayed(long due, ByteBuffer data, DatagramChannel via, SocketAddress to, int link) {
+			this.due = due;
+			this.data = data;
+			this.via = via;
+			this.to = to;
+			this.link = link;
 		}
 	}
 
@@ -390,9 +1719,18 @@ public class Host {
 			System.out.println("V - Toggle verbose mode");
 			System.out.println("I - Set the target IP (Default localhost)");
 			System.out.println("E - View error simulator options");
+			System.out.println("P - Set an impairment profile (loss, burst, delay, jitter, dup, reorder, corrupt)");
+			System.out.println("L - Set a link (rate, delay, queue, bucket)");
+			System.out.println("S - Show the impairment and link counts");
+			System.out.println("C - Start or stop capturing packets to a file");
 			System.out.println("Q - Quit");
-			System.out.println("Restart this between transfers.");
 			System.out.print("Verbose: "); System.out.println(verbose);
+			if (fromClient != null) { System.out.print("Impairing client packets: "); System.out.println(fromClient); }
+			if (fromServer != null) { System.out.print("Impairing server packets: "); System.out.println(fromServer); }
+			if (fromClient != null || fromServer != null) { System.out.print("Seed: "); System.out.println(seed); }
+			if (clientLink != null) { System.out.print("Client link: "); System.out.println(clientLink); }
+			if (serverLink != null) { System.out.print("Server link: "); System.out.println(serverLink); }
+			if (capture != null) System.out.println("Capturing");
 		}
 
 		/**
@@ -407,6 +1745,7 @@ public class Host {
 			while (!quit) {
 				printUI();
 				command = input.nextLine();
+				if (command.isEmpty()) continue;
 
 				switch (command.toLowerCase().charAt(0)) {
 				case 'q': quit = true;
@@ -420,6 +1759,12 @@ public class Host {
 				break;
 				case 'i': setTarget();
 			 	break;
+				case 'p': getProfile(promptClientOrServer());
+				break;
+				case 'l': getLink(promptClientOrServer());
+				break;
+				case 'c': getCapture();
+				break;
 				case '1': x = promptClientOrServer(); 
 				if(x == 1){
 					errorReq = CHANGEOPCODECLIENT;
@@ -510,6 +1855,38 @@ public class Host {
 			System.out.println("Which packet #?");
 			clientPkt = input.nextInt();
 		}
+		public void getProfile(int x){
+			Scanner input = new Scanner(System.in);
+			System.out.println("Profile, e.g. loss=0.01,burst=0.01:0.3,delay=20,jitter=5,dup=0.001,reorder=0.01,corrupt=0.001 (blank for none)?");
+			try {
+				setImpairment(x == 1, input.nextLine());
+			} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+				System.out.println("Invalid profile. " + e.getMessage());
+			}
+		}
+		public void getLink(int x){
+			Scanner input = new Scanner(System.in);
+			System.out.println("Link, e.g. rate=10M,delay=20,queue=100,bucket=3000 (blank for none)?");
+			try {
+				setLink(x == 1, input.nextLine());
+			} catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+				System.out.println("Invalid link. " + e.getMessage());
+			}
+		}
+		public void getCapture() throws IOException {
+			if (capture != null) {
+				setCapture(null);
+				return;
+			}
+
+			Scanner input = new Scanner(System.in);
+			System.out.println("Capture file?");
+			try {
+				setCapture(input.nextLine());
+			} catch (IOException e) {
+				System.out.println("Couldn't create the capture. " + e.getMessage());
+			}
+		}
 		public int promptClientOrServer(){
 			Scanner input = new Scanner(System.in);
 			System.out.println("Client (1) or Server (2)?");
@@ -531,20 +1908,49 @@ public class Host {
 				this.ui();
 			} catch (IOException e) {
 				e.printStackTrace();
+			} catch (NoSuchElementException e) {
+				// No console, as when a scenario runs unattended.  The host carries on without one.
 			}
 		}
 	}
 
-	public static void main(String[] args) {
-		Host host = new Host();
-		host.rcvP23();
+	public static void main(String[] args) throws IOException {
+		String replay = null, target = null;
+		int port = 69;
+		double speed = 1;
+		Host host;
 
-		while (true) {
-			host.forward();
-			host.receive2();
-			host.forwardReply();
-			host.receive1();
+		for (int i = 0; i < args.length - 1; i++) {
+			if (args[i].equals("-replay")) replay = args[++i];
+			else if (args[i].equals("-speed")) speed = Double.parseDouble(args[++i]);
+			else if (args[i].equals("-target")) target = args[++i];
+			else if (args[i].equals("-port")) port = Integer.parseInt(args[++i]);
+		}
+
+		if (replay != null) {
+			new Replay(replay, new InetSocketAddress(target == null ? InetAddress.getLocalHost()
+					: InetAddress.getByName(target), port), speed).run();
+			return;
+		}
+
+		host = new Host();
+		try {
+			for (int i = 0; i < args.length - 1; i++) {
+				if (args[i].equals("-client")) host.setImpairment(true, args[++i]);
+				else if (args[i].equals("-server")) host.setImpairment(false, args[++i]);
+				else if (args[i].equals("-clientlink")) host.setLink(true, args[++i]);
+				else if (args[i].equals("-serverlink")) host.setLink(false, args[++i]);
+				else if (args[i].equals("-seed")) host.setSeed(Long.parseLong(args[++i]));
+				else if (args[i].equals("-capture")) host.setCapture(args[++i]);
+				else if (args[i].equals("-scenario")) host.setScenario(args[++i]);
+			}
+		} catch (IllegalArgumentException e) {
+			// Nothing should run with half of what was asked for, least of all unattended.
+			System.out.println(e.getMessage());
+			System.exit(1);
 		}
+
+		host.serve();
 	}
 
 }
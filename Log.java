@@ -0,0 +1,297 @@
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log
+ * The log takes diagnostic messages off the transfer threads.
+ * <p>
+ * Messages below the current level are dropped before anything is built, so a disabled message costs one volatile
+ * read.  Enabled messages are put in a fixed ring buffer as a template and up to two arguments, and a background
+ * thread formats and prints them.  Numeric arguments are stored as longs, so logging a block number doesn't box it.
+ * Writers never wait: when the ring is full a message is dropped and counted instead.
+ * <p>
+ * Levels, each including the ones before it:
+ * INFO messages about whole transfers, DEBUG a line per packet, PAYLOAD a hexdump of every block as well.
+ * <p>
+ * Templates mark where arguments go with {}.
+ */
+public class Log {
+	public static final int OFF = 0;
+	public static final int INFO = 1;
+	public static final int DEBUG = 2;
+	public static final int PAYLOAD = 3;
+
+	private static final int capacity = 8192;
+	private static final int mask = capacity - 1;
+	private static final String[] names = {"OFF", "INFO", "DEBUG", "PAYLOAD"};
+
+	private static volatile int level = INFO;
+
+	// Each slot's sequence says whose turn it is: a writer may claim slot i when it is equal to the write position,
+	// and the reader may take it once it is one past it (a bounded multi producer queue after Dmitry Vyukov).
+	private static final Slot[] ring = new Slot[capacity];
+	private static final AtomicLongArray sequence = new AtomicLongArray(capacity);
+	private static final AtomicLong tail = new AtomicLong();
+	private static final AtomicLong dropped = new AtomicLong();
+	private static long head;
+	private static volatile long printedUpTo;
+
+	private static final Thread writer;
+
+	static {
+		for (int i = 0; i < capacity; i++) {
+			ring[i] = new Slot();
+			sequence.set(i, i);
+		}
+
+		writer = new Thread(Log::drain, "log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Sets which messages are logged.
+	 * @param level OFF, INFO, DEBUG or PAYLOAD.
+	 */
+	public static void setLevel(int level) {
+		Log.level = Math.max(OFF, Math.min(level, PAYLOAD));
+	}
+
+	/**
+	 * Sets which messages are logged by the level's name, in any case.  Unknown names leave the level as it is.
+	 */
+	public static void setLevel(String name) {
+		for (int i = 0; i < names.length; i++) if (names[i].equalsIgnoreCase(name)) setLevel(i);
+	}
+
+	/**
+	 * Turns a level on, or back off to the one before it if it is already on.  Used by the console toggles.
+	 */
+	public static void toggle(int level) {
+		setLevel(Log.level >= level ? level - 1 : level);
+	}
+
+	public static int getLevel() {
+		return level;
+	}
+
+	public static String getLevelName() {
+		return names[level];
+	}
+
+	/**
+	 * @return True if DEBUG messages are logged.  Use to skip building arguments which allocate.
+	 */
+	public static boolean debug() {
+		return level >= DEBUG;
+	}
+
+	/**
+	 * @return True if payload hexdumps are logged.
+	 */
+	public static boolean payload() {
+		return level >= PAYLOAD;
+	}
+
+	/**
+	 * @return How many messages were dropped because the ring was full.
+	 */
+	public static long getDropped() {
+		return dropped.get();
+	}
+
+	public static void info(String message) {
+		if (level >= INFO) put(INFO, message, 0, null, null, 0, 0, null, 0, 0);
+	}
+
+	public static void info(String template, Object a) {
+		if (level >= INFO) put(INFO, template, 1, a, null, 0, 0, null, 0, 0);
+	}
+
+	public static void info(String template, Object a, Object b) {
+		if (level >= INFO) put(INFO, template, 2, a, b, 0, 0, null, 0, 0);
+	}
+
+	public static void debug(String message) {
+		if (level >= DEBUG) put(DEBUG, message, 0, null, null, 0, 0, null, 0, 0);
+	}
+
+	public static void debug(String template, Object a) {
+		if (level >= DEBUG) put(DEBUG, template, 1, a, null, 0, 0, null, 0, 0);
+	}
+
+	public static void debug(String template, Object a, Object b) {
+		if (level >= DEBUG) put(DEBUG, template, 2, a, b, 0, 0, null, 0, 0);
+	}
+
+	public static void debug(String template, long x) {
+		if (level >= DEBUG) put(DEBUG, template, -1, null, null, x, 0, null, 0, 0);
+	}
+
+	public static void debug(String template, long x, long y) {
+		if (level >= DEBUG) put(DEBUG, template, -2, null, null, x, y, null, 0, 0);
+	}
+
+	/**
+	 * Logs a hexdump of a block.  The bytes are copied, so the buffer can be reused straight away.
+	 * @param block The block number, for the heading.
+	 */
+	public static void payload(long block, byte[] buf, int offset, int length) {
+		if (level < PAYLOAD) return;
+
+		byte[] copy = new byte[length];
+		System.arraycopy(buf, offset, copy, 0, length);
+		put(PAYLOAD, "Block {}, {} bytes", -2, null, null, block, length, copy, 0, length);
+	}
+
+	/**
+	 * Logs a hexdump of the block in a DATA packet, without moving the packet's position.
+	 * @param block The block number, for the heading.
+	 * @param packet The packet, from its header up to its limit.
+	 */
+	public static void payload(long block, ByteBuffer packet) {
+		if (level < PAYLOAD) return;
+
+		byte[] copy = new byte[packet.limit() - PacketCodec.HEADER];
+		packet.duplicate().position(PacketCodec.HEADER).get(copy);
+		put(PAYLOAD, "Block {}, {} bytes", -2, null, null, block, copy.length, copy, 0, copy.length);
+	}
+
+	/**
+	 * Waits until every message logged so far has been printed.
+	 */
+	public static void flush() {
+		long end = tail.get();
+
+		while (printedUpTo < end) LockSupport.parkNanos(100000L);
+	}
+
+	/**
+	 * Claims a slot and fills it in, or counts the message as dropped if the ring is full.
+	 * @param count The number of Object arguments, or minus the number of long arguments.
+	 */
+	private static void put(int lvl, String template, int count, Object a, Object b, long x, long y, byte[] data,
+			int offset, int length) {
+		long pos;
+		Slot slot;
+
+		while (true) {
+			pos = tail.get();
+			long diff = sequence.get((int)pos & mask) - pos;
+
+			if (diff < 0) {
+				dropped.incrementAndGet();
+				return;
+			}
+			if (diff == 0 && tail.compareAndSet(pos, pos + 1)) break;
+		}
+
+		slot = ring[(int)pos & mask];
+		slot.level = lvl;
+		slot.template = template;
+		slot.count = count;
+		slot.a = a;
+		slot.b = b;
+		slot.x = x;
+		slot.y = y;
+		slot.data = data;
+		slot.offset = offset;
+		slot.length = length;
+
+		sequence.set((int)pos & mask, pos + 1);
+	}
+
+	/**
+	 * Runs on the log thread.  Prints every message in the ring, then sleeps briefly if there were none.
+	 */
+	private static void drain() {
+		StringBuilder line = new StringBuilder();
+
+		while (true) {
+			int printed = 0;
+
+			while (sequence.get((int)head & mask) == head + 1) {
+				Slot slot = ring[(int)head & mask];
+
+				line.setLength(0);
+				slot.format(line);
+				if (slot.data != null) hexdump(line, slot.data, slot.offset, slot.length);
+
+				// Let go of the arguments before handing the slot back.
+				slot.a = null;
+				slot.b = null;
+				slot.data = null;
+
+				sequence.set((int)head & mask, head + capacity);
+				head++;
+				printed++;
+
+				System.out.println(line);
+			}
+
+			printedUpTo = head;
+			if (printed == 0) LockSupport.parkNanos(1000000L);
+		}
+	}
+
+	/**
+	 * Appends a hexdump of the bytes given: 16 bytes a line, with their offset and printable characters.
+	 */
+	private static void hexdump(StringBuilder out, byte[] data, int offset, int length) {
+		final String hex = "0123456789abcdef";
+
+		for (int line = 0; line < length; line += 16) {
+			out.append(System.lineSeparator());
+			for (int shift = 12; shift >= 0; shift -= 4) out.append(hex.charAt(line >> shift & 0xf));
+			out.append("  ");
+
+			for (int i = line; i < line + 16; i++) {
+				if (i < length) {
+					int b = data[offset + i] & 0xff;
+					out.append(hex.charAt(b >> 4)).append(hex.charAt(b & 0xf)).append(' ');
+				} else {
+					out.append("   ");
+				}
+			}
+
+			out.append(' ');
+			for (int i = line; i < line + 16 && i < length; i++) {
+				char c = (char)(data[offset + i] & 0xff);
+				out.append(c >= 0x20 && c < 0x7f ? c : '.');
+			}
+		}
+	}
+
+	/**
+	 * Slot
+	 * One message in the ring.
+	 */
+	private static class Slot {
+		private int level, count, offset, length;
+		private String template;
+		private Object a, b;
+		private long x, y;
+		private byte[] data;
+
+		/**
+		 * Appends the message with its arguments filled in.
+		 */
+		private void format(StringBuilder out) {
+			int arg = 0, from = 0, at;
+
+			if (level != INFO) out.append(names[level]).append(": ");
+
+			while ((at = template.indexOf("{}", from)) != -1 && arg < Math.abs(count)) {
+				out.append(template, from, at);
+				if (count > 0) out.append(arg == 0 ? a : b);
+				else out.append(arg == 0 ? x : y);
+				arg++;
+				from = at + 2;
+			}
+			out.append(template, from, template.length());
+		}
+	}
+}
@@ -0,0 +1,435 @@
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Metrics
+ * The metrics count what the server does: requests, sessions, blocks and bytes moved, retransmissions, duplicate
+ * packets, errors by code, how long transfers take and how fast they go, and what each listener on the request port
+ * received and dropped.
+ * <p>
+ * Every counter is a LongAdder, so transfers on different threads update their own cells instead of fighting over
+ * one.  Adders are only summed when the metrics are read.
+ * <p>
+ * The metrics can be read over JMX, as the MBean RTCSProject:type=Server, and as a Prometheus text page served on a
+ * loopback port.
+ */
+public class Metrics implements MetricsMBean {
+	private static final double[] durationBounds = {0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60, 300};
+	private static final double[] throughputBounds = {1e4, 1e5, 1e6, 1e7, 1e8, 1e9};
+
+	private final LongAdder active = new LongAdder();
+	private final LongAdder readRequests = new LongAdder();
+	private final LongAdder writeRequests = new LongAdder();
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder bytesReceived = new LongAdder();
+	private final LongAdder blocksSent = new LongAdder();
+	private final LongAdder blocksReceived = new LongAdder();
+	private final LongAdder retransmits = new LongAdder();
+	private final LongAdder duplicateAcks = new LongAdder();
+	private final LongAdder duplicateData = new LongAdder();
+	private final LongAdder duplicateRequests = new LongAdder();
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	// Error packets by code.  Codes 0 to 8 are defined (RFC 1350, 2347), anything else is counted as 0.
+	private final LongAdder[] errorsSent = adders(9);
+	private final LongAdder[] errorsReceived = adders(9);
+	private final Histogram duration = new Histogram(durationBounds);
+	private final Histogram throughput = new Histogram(throughputBounds);
+	// Packets received on the request port and requests which didn't start a transfer, by listener.
+	private volatile LongAdder[] listenerRequests = adders(1);
+	private volatile LongAdder[] listenerDrops = adders(1);
+	private volatile int requestPort;
+
+	private HttpServer http;
+
+	/**
+	 * Counts a valid request.
+	 * @param write True for a WRQ, false for an RRQ.
+	 */
+	public void requested(boolean write) {
+		(write ? writeRequests : readRequests).increment();
+	}
+
+	public void sessionStarted() {
+		active.increment();
+	}
+
+	/**
+	 * Counts the end of a session.  Only completed transfers go into the duration and throughput histograms.
+	 * @param done True if the whole file was transferred.
+	 * @param bytes The number of bytes of the file transferred.
+	 * @param nanos How long the session lasted.
+	 */
+	public void sessionEnded(boolean done, long bytes, long nanos) {
+		active.decrement();
+
+		if (!done) {
+			failed.increment();
+			return;
+		}
+
+		double seconds = nanos / 1e9;
+		completed.increment();
+		duration.record(seconds);
+		if (seconds > 0) throughput.record(bytes / seconds);
+	}
+
+	/**
+	 * Counts a DATA packet sent, including ones sent again.
+	 * @param bytes The size of the block.
+	 */
+	public void dataSent(int bytes) {
+		blocksSent.increment();
+		bytesSent.add(bytes);
+	}
+
+	/**
+	 * Counts a DATA packet received in order.
+	 * @param bytes The size of the block.
+	 */
+	public void dataReceived(int bytes) {
+		blocksReceived.increment();
+		bytesReceived.add(bytes);
+	}
+
+	public void retransmitted() {
+		retransmits.increment();
+	}
+
+	public void duplicateAck() {
+		duplicateAcks.increment();
+	}
+
+	public void duplicateData() {
+		duplicateData.increment();
+	}
+
+	/**
+	 * Counts a request dropped because the transfer it asks for is already running.
+	 */
+	public void duplicateRequest() {
+		duplicateRequests.increment();
+	}
+
+	public void errorSent(int code) {
+		errorsSent[code >= 0 && code < errorsSent.length ? code : 0].increment();
+	}
+
+	public void errorReceived(int code) {
+		errorsReceived[code >= 0 && code < errorsReceived.length ? code : 0].increment();
+	}
+
+	/**
+	 * Starts counting for the given number of listeners, from 0.  Counts so far are dropped.
+	 * @param port The port the listeners receive requests on.
+	 */
+	public void setListeners(int count, int port) {
+		listenerRequests = adders(count);
+		listenerDrops = adders(count);
+		requestPort = port;
+	}
+
+	/**
+	 * Counts a packet received on the request port.
+	 */
+	public void listened(int listener) {
+		listenerRequests[listener].increment();
+	}
+
+	/**
+	 * Counts a packet on the request port which didn't start a transfer: an invalid request, one refused for lack of
+	 * space, or a repeated one.
+	 */
+	public void listenerDropped(int listener) {
+		listenerDrops[listener].increment();
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server.
+	 */
+	public void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("RTCSProject:type=Server"));
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Serves the metrics in the Prometheus text format at /metrics.  Only listens on the loopback address.
+	 * @param port The port to serve on.
+	 * @throws IOException If the port could not be bound.
+	 */
+	public void serve(int port) throws IOException {
+		http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		http.createContext("/metrics", exchange -> {
+			byte[] page = prometheus().getBytes("UTF-8");
+
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, page.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(page);
+			}
+		});
+		http.start();
+	}
+
+	/**
+	 * Stops serving the metrics page.
+	 */
+	public void stop() {
+		if (http != null) http.stop(0);
+	}
+
+	/**
+	 * @return Every metric in the Prometheus text exposition format.
+	 */
+	public String prometheus() {
+		StringBuilder out = new StringBuilder();
+
+		gauge(out, "tftp_active_sessions", "Transfers in progress.", active.sum());
+		counter(out, "tftp_requests_total", "Valid requests received.", "type", new String[] {"rrq", "wrq"},
+				new LongAdder[] {readRequests, writeRequests});
+		counter(out, "tftp_bytes_sent_total", "Bytes of file data sent, including retransmissions.", bytesSent.sum());
+		counter(out, "tftp_bytes_received_total", "Bytes of file data received in order.", bytesReceived.sum());
+		counter(out, "tftp_blocks_sent_total", "DATA packets sent, including retransmissions.", blocksSent.sum());
+		counter(out, "tftp_blocks_received_total", "DATA packets received in order.", blocksReceived.sum());
+		counter(out, "tftp_retransmits_total", "Windows or packets sent again.", retransmits.sum());
+		counter(out, "tftp_duplicate_acks_total", "Acknowledges which did not move the window.", duplicateAcks.sum());
+		counter(out, "tftp_duplicate_data_total", "DATA packets received again or out of order.", duplicateData.sum());
+		counter(out, "tftp_duplicate_requests_total", "Requests dropped because their transfer was already running.",
+				duplicateRequests.sum());
+		counter(out, "tftp_errors_sent_total", "ERROR packets sent, by code.", "code", codes(), errorsSent);
+		counter(out, "tftp_errors_received_total", "ERROR packets received, by code.", "code", codes(), errorsReceived);
+		counter(out, "tftp_transfers_total", "Transfers ended, by outcome.", "outcome",
+				new String[] {"completed", "failed"}, new LongAdder[] {completed, failed});
+		counter(out, "tftp_listener_requests_total", "Packets received on the request port, by listener.", "listener",
+				numbers(listenerRequests.length), listenerRequests);
+		counter(out, "tftp_listener_dropped_total", "Packets on the request port which didn't start a transfer.",
+				"listener", numbers(listenerDrops.length), listenerDrops);
+		long kernel = getKernelDrops();
+		if (kernel >= 0) {
+			counter(out, "tftp_listener_kernel_drops_total", "Packets the kernel dropped on the request port.", kernel);
+		}
+		duration.write(out, "tftp_transfer_duration_seconds", "Time taken by completed transfers.");
+		throughput.write(out, "tftp_transfer_throughput_bytes_per_second", "Throughput of completed transfers.");
+
+		return out.toString();
+	}
+
+	public long getActiveSessions() {
+		return active.sum();
+	}
+
+	public long getReadRequests() {
+		return readRequests.sum();
+	}
+
+	public long getWriteRequests() {
+		return writeRequests.sum();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	public long getBlocksSent() {
+		return blocksSent.sum();
+	}
+
+	public long getBlocksReceived() {
+		return blocksReceived.sum();
+	}
+
+	public long getRetransmits() {
+		return retransmits.sum();
+	}
+
+	public long getDuplicateAcks() {
+		return duplicateAcks.sum();
+	}
+
+	public long getDuplicateData() {
+		return duplicateData.sum();
+	}
+
+	public long getDuplicateRequests() {
+		return duplicateRequests.sum();
+	}
+
+	public long getErrorsSent() {
+		return sum(errorsSent);
+	}
+
+	public long getErrorsReceived() {
+		return sum(errorsReceived);
+	}
+
+	public long getTransfersCompleted() {
+		return completed.sum();
+	}
+
+	public long getTransfersFailed() {
+		return failed.sum();
+	}
+
+	public double getMeanTransferSeconds() {
+		return duration.mean();
+	}
+
+	public double getMeanThroughput() {
+		return throughput.mean();
+	}
+
+	public long[] getListenerRequests() {
+		return sums(listenerRequests);
+	}
+
+	public long[] getListenerDrops() {
+		return sums(listenerDrops);
+	}
+
+	/**
+	 * Reads how many packets the kernel dropped on the request port because the listeners fell behind, from
+	 * /proc/net/udp and /proc/net/udp6.  Only Linux keeps these.
+	 */
+	public long getKernelDrops() {
+		String local = String.format(":%04X", requestPort);
+		String line;
+		long drops = -1;
+
+		for (String table : new String[] {"/proc/net/udp", "/proc/net/udp6"}) {
+			try (BufferedReader in = Files.newBufferedReader(Paths.get(table))) {
+				if (drops < 0) drops = 0;
+
+				// After the heading, each line is a socket.  The second column is its local address and port, and the
+				// thirteenth the packets dropped.
+				in.readLine();
+				while ((line = in.readLine()) != null) {
+					String[] columns = line.trim().split("\\s+");
+					if (columns.length > 12 && columns[1].endsWith(local)) drops += Long.parseLong(columns[12]);
+				}
+			} catch (IOException | NumberFormatException e) {
+				// Not Linux, or a table which can't be read.
+			}
+		}
+
+		return drops;
+	}
+
+	private static LongAdder[] adders(int count) {
+		LongAdder[] adders = new LongAdder[count];
+		for (int i = 0; i < count; i++) adders[i] = new LongAdder();
+		return adders;
+	}
+
+	private static long[] sums(LongAdder[] adders) {
+		long[] sums = new long[adders.length];
+		for (int i = 0; i < adders.length; i++) sums[i] = adders[i].sum();
+		return sums;
+	}
+
+	private static long sum(LongAdder[] adders) {
+		long total = 0;
+		for (LongAdder adder : adders) total += adder.sum();
+		return total;
+	}
+
+	private String[] codes() {
+		return numbers(errorsSent.length);
+	}
+
+	private static String[] numbers(int count) {
+		String[] numbers = new String[count];
+		for (int i = 0; i < count; i++) numbers[i] = Integer.toString(i);
+		return numbers;
+	}
+
+	private static void header(StringBuilder out, String name, String help, String type) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void gauge(StringBuilder out, String name, String help, long value) {
+		header(out, name, help, "gauge");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void counter(StringBuilder out, String name, String help, long value) {
+		header(out, name, help, "counter");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void counter(StringBuilder out, String name, String help, String label, String[] values,
+			LongAdder[] adders) {
+		header(out, name, help, "counter");
+		for (int i = 0; i < adders.length; i++) {
+			out.append(name).append('{').append(label).append("=\"").append(values[i]).append("\"} ");
+			out.append(adders[i].sum()).append('\n');
+		}
+	}
+
+	/**
+	 * Histogram
+	 * Counts observations into fixed buckets, each holding the observations up to its upper bound.
+	 */
+	private static class Histogram {
+		private final double[] bounds;
+		private final LongAdder[] buckets;
+		private final LongAdder count = new LongAdder();
+		private final DoubleAdder sum = new DoubleAdder();
+
+		public Histogram(double[] bounds) {
+			this.bounds = bounds;
+			buckets = adders(bounds.length + 1);
+		}
+
+		public void record(double value) {
+			int i = 0;
+			while (i < bounds.length && value > bounds[i]) i++;
+
+			buckets[i].increment();
+			count.increment();
+			sum.add(value);
+		}
+
+		public double mean() {
+			long n = count.sum();
+			return n == 0 ? 0 : sum.sum() / n;
+		}
+
+		/**
+		 * Appends the histogram with cumulative buckets, as Prometheus expects.
+		 */
+		public void write(StringBuilder out, String name, String help) {
+			long cumulative = 0;
+
+			header(out, name, help, "histogram");
+			for (int i = 0; i <= bounds.length; i++) {
+				cumulative += buckets[i].sum();
+				out.append(name).append("_bucket{le=\"").append(i < bounds.length ? Double.toString(bounds[i]) : "+Inf");
+				out.append("\"} ").append(cumulative).append('\n');
+			}
+			out.append(name).append("_sum ").append(sum.sum()).append('\n');
+			out.append(name).append("_count ").append(count.sum()).append('\n');
+		}
+	}
+}
@@ -0,0 +1,61 @@
+
+/**
+ * MetricsMBean
+ * The server's counters as seen over JMX.  Totals are since the server started.
+ */
+public interface MetricsMBean {
+	public long getActiveSessions();
+
+	public long getReadRequests();
+
+	public long getWriteRequests();
+
+	public long getBytesSent();
+
+	public long getBytesReceived();
+
+	public long getBlocksSent();
+
+	public long getBlocksReceived();
+
+	public long getRetransmits();
+
+	public long getDuplicateAcks();
+
+	public long getDuplicateData();
+
+	public long getDuplicateRequests();
+
+	public long getErrorsSent();
+
+	public long getErrorsReceived();
+
+	public long getTransfersCompleted();
+
+	public long getTransfersFailed();
+
+	/**
+	 * @return The average time a completed transfer took, in seconds.
+	 */
+	public double getMeanTransferSeconds();
+
+	/**
+	 * @return The average throughput of a completed transfer, in bytes per second.
+	 */
+	public double getMeanThroughput();
+
+	/**
+	 * @return The packets received on the request port, by listener.
+	 */
+	public long[] getListenerRequests();
+
+	/**
+	 * @return The packets on the request port which didn't start a transfer, by listener.
+	 */
+	public long[] getListenerDrops();
+
+	/**
+	 * @return The packets the kernel dropped on the request port, or -1 where that isn't known.
+	 */
+	public long getKernelDrops();
+}
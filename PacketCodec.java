@@ -0,0 +1,237 @@
+
+import java.util.Map;
+
+/**
+ * PacketCodec
+ * The packet codec reads and writes TFTP packets in place, in buffers owned by the caller.
+ * <p>
+ * Encoding a DATA or ACK header or decoding an opcode or block number never allocates, so a transfer can reuse the
+ * same buffers for every block.  Requests, errors and OACKs are only built once per transfer, and are encoded
+ * character by character without going through intermediate byte arrays.
+ * <p>
+ * Every packet starts with a 16 bit opcode, most significant byte first:
+ * RRQ/WRQ {opcode, filename, 0x00, mode, 0x00, [option, 0x00, value, 0x00]...}
+ * DATA {0x00, 0x03, block, data...}
+ * ACK {0x00, 0x04, block}
+ * ERROR {0x00, 0x05, code, message, 0x00}
+ * OACK {0x00, 0x06, [option, 0x00, value, 0x00]...}
+ */
+public class PacketCodec {
+	public static final int RRQ = 1;
+	public static final int WRQ = 2;
+	public static final int DATA = 3;
+	public static final int ACK = 4;
+	public static final int ERROR = 5;
+	public static final int OACK = 6;
+	public static final int HEADER = 4;
+
+	/**
+	 * @return The opcode of the packet in the buffer.
+	 */
+	public static int opcode(byte[] buf) {
+		return getShort(buf, 0);
+	}
+
+	/**
+	 * @return The 16 bit block number of a DATA or ACK packet, or the error code of an ERROR packet.
+	 */
+	public static int block(byte[] buf) {
+		return getShort(buf, 2);
+	}
+
+	/**
+	 * Works out the 16 bit block number sent for a block.  Block numbers count up to 65535 and then wrap around to
+	 * the rollover value: 0, as most implementations do, or 1, which some clients expect so that block number 0
+	 * only ever acknowledges a request.
+	 * @param block The block, counted from 1 without wrapping.  0 stands for the acknowledge of a request.
+	 * @param rollover The block number following 65535, 0 or 1.
+	 */
+	public static int wireBlock(int block, int rollover) {
+		return block <= 0 ? 0 : (block - rollover) % cycle(rollover) + rollover;
+	}
+
+	/**
+	 * Same as ackedBlock(last, number, 0).
+	 */
+	public static int ackedBlock(int last, int number) {
+		return ackedBlock(last, number, 0);
+	}
+
+	/**
+	 * Works out which block an acknowledge refers to, given the last block sent.  Acknowledges are never for blocks
+	 * which haven't been sent, so the block is the latest one up to last which is sent with the same number.
+	 * @param last The last block sent.
+	 * @param number The 16 bit block number received.
+	 * @param rollover The block number following 65535, 0 or 1.
+	 */
+	public static int ackedBlock(int last, int number, int rollover) {
+		return last - Math.floorMod(last - number, cycle(rollover));
+	}
+
+	/**
+	 * Same as dataBlock(expected, number, 0).
+	 */
+	public static int dataBlock(int expected, int number) {
+		return dataBlock(expected, number, 0);
+	}
+
+	/**
+	 * Works out which block a DATA packet holds, given the block expected next.  The block is the one sent with the
+	 * same number closest to the one expected, so late duplicates and blocks after a gap both map correctly.
+	 * @param expected The block expected next.
+	 * @param number The 16 bit block number received.
+	 * @param rollover The block number following 65535, 0 or 1.
+	 */
+	public static int dataBlock(int expected, int number, int rollover) {
+		int cycle = cycle(rollover), ahead = Math.floorMod(number - expected, cycle);
+
+		return expected + (ahead < cycle / 2 ? ahead : ahead - cycle);
+	}
+
+	/**
+	 * @return How many blocks go by before block numbers repeat.
+	 */
+	private static int cycle(int rollover) {
+		return 0x10000 - rollover;
+	}
+
+	/**
+	 * Writes the header of a DATA packet.  The block itself goes in from offset HEADER.
+	 * @param block The block number.  Only the low 16 bits are sent.
+	 * @return The length of the header.
+	 */
+	public static int putData(byte[] buf, int block) {
+		putShort(buf, 0, DATA);
+		putShort(buf, 2, block);
+		return HEADER;
+	}
+
+	/**
+	 * Writes an ACK packet.
+	 * @param block The block number.  Only the low 16 bits are sent.
+	 * @return The length of the packet.
+	 */
+	public static int putAck(byte[] buf, int block) {
+		putShort(buf, 0, ACK);
+		putShort(buf, 2, block);
+		return HEADER;
+	}
+
+	/**
+	 * Writes an ERROR packet.
+	 * @param code The error code.
+	 * @param message A description of the error.
+	 * @return The length of the packet.
+	 */
+	public static int putError(byte[] buf, int code, String message) {
+		putShort(buf, 0, ERROR);
+		putShort(buf, 2, code);
+		return putString(buf, HEADER, message);
+	}
+
+	/**
+	 * Writes the start of an RRQ or WRQ.  Options can be added after it with putOption.
+	 * @param opcode RRQ or WRQ.
+	 * @return The length of the packet so far.
+	 */
+	public static int putRequest(byte[] buf, int opcode, String filename, String mode) {
+		putShort(buf, 0, opcode);
+		return putString(buf, putString(buf, 2, filename), mode);
+	}
+
+	/**
+	 * Writes an OACK holding the options given.
+	 * @return The length of the packet.
+	 */
+	public static int putOACK(byte[] buf, Map<String, String> options) {
+		int length = 2;
+
+		putShort(buf, 0, OACK);
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			length = putOption(buf, length, option.getKey(), option.getValue());
+		}
+
+		return length;
+	}
+
+	/**
+	 * Writes an option and its value.
+	 * @param offset Where the option starts.
+	 * @return The offset after the option.
+	 */
+	public static int putOption(byte[] buf, int offset, String name, String value) {
+		return putString(buf, putString(buf, offset, name), value);
+	}
+
+	/**
+	 * @return The number of bytes the option takes up in a packet.
+	 */
+	public static int optionLength(String name, String value) {
+		return name.length() + value.length() + 2;
+	}
+
+	/**
+	 * @return The value of a range option, the part of a file starting at offset as {@code <offset>:<length>}.
+	 */
+	public static String range(long offset, long length) {
+		return offset + ":" + length;
+	}
+
+	/**
+	 * Reads the value of a range option.
+	 * @return The offset and length, or null if the value isn't a range.
+	 */
+	public static long[] range(String value) {
+		int colon = value.indexOf(':');
+
+		if (colon == -1) return null;
+
+		try {
+			long offset = Long.parseLong(value.substring(0, colon).trim());
+			long length = Long.parseLong(value.substring(colon + 1).trim());
+			return offset >= 0 && length >= 0 ? new long[] {offset, length} : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a string of 8 bit characters followed by 0x00.
+	 * @param offset Where the string starts.
+	 * @return The offset after the terminating 0x00.
+	 */
+	public static int putString(byte[] buf, int offset, String s) {
+		for (int i = 0; i < s.length(); i++) buf[offset++] = (byte)s.charAt(i);
+		buf[offset++] = 0x00;
+		return offset;
+	}
+
+	/**
+	 * Reads the filename out of an RRQ or WRQ.
+	 * @param length The length of the packet.
+	 */
+	public static String filename(byte[] buf, int length) {
+		int end = 2;
+		while (end < length && buf[end] != 0x00) end++;
+		return new String(buf, 2, end - 2);
+	}
+
+	/**
+	 * Reads the message out of an ERROR packet.
+	 * @param length The length of the packet.
+	 */
+	public static String errorMessage(byte[] buf, int length) {
+		int end = HEADER;
+		while (end < length && buf[end] != 0x00) end++;
+		return new String(buf, HEADER, end - HEADER);
+	}
+
+	private static int getShort(byte[] buf, int offset) {
+		return (buf[offset] & 0xff) << 8 | buf[offset + 1] & 0xff;
+	}
+
+	private static void putShort(byte[] buf, int offset, int value) {
+		buf[offset] = (byte)(value >> 8);
+		buf[offset + 1] = (byte)value;
+	}
+}
@@ -0,0 +1,102 @@
+
+/**
+ * RetransmitTimer
+ * The retransmit timer decides how long a transfer waits for an answer before sending again.
+ * <p>
+ * The round trip time is measured on every acknowledge and the timeout follows it (RFC 6298): the smoothed round
+ * trip time plus four times its variation.  Packets which had to be sent again are never measured, since there is
+ * no telling which copy was answered, and every timeout in a row doubles the wait until the peer is given up on.
+ * <p>
+ * A transfer which negotiated the timeout option (RFC 2349) uses the value agreed on instead, without adapting it.
+ */
+public class RetransmitTimer {
+	private static final long minTimeout_ns = 10000000L;
+	private static final long maxTimeout_ns = 10000000000L;
+	private static final int maxRetries = 10;
+
+	private long srtt, rttvar, rto, sentAt;
+	private boolean adaptive, measured, timing;
+	private int retries;
+
+	/**
+	 * Constructor for the RetransmitTimer class
+	 * @param timeout_ms How long to wait before the first round trip has been measured, or for good if not adaptive.
+	 * @param adaptive If true, the timeout follows the measured round trip time.
+	 */
+	public RetransmitTimer(int timeout_ms, boolean adaptive) {
+		this.adaptive = adaptive;
+
+		rto = timeout_ms * 1000000L;
+	}
+
+	/**
+	 * Starts timing a round trip.  Call when sending data which has not been sent before.
+	 */
+	public void sent() {
+		sentAt = System.nanoTime();
+		timing = true;
+	}
+
+	/**
+	 * Stops timing the current round trip, because the data is being sent again.
+	 */
+	public void resent() {
+		timing = false;
+	}
+
+	/**
+	 * Records an acknowledge, measuring the round trip if it wasn't sent again in the meantime.
+	 */
+	public void acked() {
+		long rtt = System.nanoTime() - sentAt;
+
+		retries = 0;
+
+		if (!timing || !adaptive) return;
+		timing = false;
+
+		if (!measured) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+			measured = true;
+		} else {
+			rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+			srtt = (7 * srtt + rtt) / 8;
+		}
+
+		rto = Math.max(minTimeout_ns, Math.min(srtt + 4 * rttvar, maxTimeout_ns));
+	}
+
+	/**
+	 * Records a timeout, backing the timer off.
+	 * @return False once the peer has failed to answer too many times in a row, and should be given up on.
+	 */
+	public boolean timedOut() {
+		timing = false;
+
+		if (adaptive) rto = Math.min(rto * 2, maxTimeout_ns);
+
+		return ++retries <= maxRetries;
+	}
+
+	/**
+	 * @return How long to wait for an answer, in milliseconds.  Never 0, which would mean waiting forever.
+	 */
+	public int getTimeout() {
+		return (int)Math.max(1, rto / 1000000L);
+	}
+
+	/**
+	 * @return How long to wait for an answer, in nanoseconds.
+	 */
+	public long getTimeoutNanos() {
+		return rto;
+	}
+
+	/**
+	 * @return The smoothed round trip time in microseconds, or 0 if none has been measured yet.
+	 */
+	public long getRoundTrip() {
+		return srtt / 1000;
+	}
+}
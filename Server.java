@@ -1,8 +1,7 @@
 
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -10,7 +9,26 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Server {
 	private static final String netascii = "netascii";
@@ -18,57 +36,323 @@ public class Server {
 	private static final String error4 = "Error 4: Illegal TFTP operation";
 	private static final String badTID = "Invalid TID";
 	private static final int timeout_ms = 500;
+	private static final int maxRequest = 516;
+	private static final int defaultBlksize = 512;
+	private static final int minBlksize = 8;
+	private static final int maxBlksizeLimit = 65464;
+	private static final int defaultMaxWindowsize = 64;
+	private static final int maxWindowsizeLimit = 65535;
+	private static final int tick_ms = 20;
 	private static final String defaultDir = "./Server/";
 	
-	private DatagramSocket port69;
-	private byte[] mode, file;
+	// The threads receiving requests.  Each has its own socket on the request port, or they all share one.
+	private Listener[] listeners;
 	
-	private DatagramPacket request;
+	private String dir;
 	
-	private Boolean valid, verbose;
+	private int maxBlksize, maxWindowsize, rollover;
+	private long syncPolicy;
 	
-	private String dir;
+	private EventLoop[] loops;
+	private AtomicInteger nextLoop;
 	
-	public boolean exit;
+	private Executor transfers;
+	private String threadKind;
+	private BlockCache cache;
+	private AtomicInteger active, peak;
+	private AtomicLong started, launchNanos;
+	private Metrics metrics;
+	// The requests whose transfers haven't answered them yet, as made by requestKey.
+	private Set<String> inFlight;
+	
+	public volatile boolean exit;
 	
 	public Server() {
+		this(69);
+		
+		new UI().start();
+	}
+	
+	/**
+	 * Constructor for a server without a console, e.g. to run inside another program.
+	 * @param port The port to listen for requests on, or 0 for any free port.
+	 */
+	Server(int port) {
+		metrics = new Metrics();
+		
 		try {
-			port69 = new DatagramSocket(69);
-		} catch (SocketException e) {
+			listeners = new Listener[] {new Listener(0, bind(port, false))};
+			metrics.setListeners(1, getPort());
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		
-		verbose = false;
 		exit = false;
 		
 		dir = defaultDir;
+		maxBlksize = maxBlksizeLimit;
+		maxWindowsize = defaultMaxWindowsize;
+		rollover = 0;
+		syncPolicy = WriteBehind.NONE;
 		
-		new UI().start();
+		transfers = new PlatformExecutor();
+		threadKind = "platform";
+		nextLoop = new AtomicInteger();
+		active = new AtomicInteger();
+		peak = new AtomicInteger();
+		started = new AtomicLong();
+		launchNanos = new AtomicLong();
+		inFlight = ConcurrentHashMap.newKeySet();
 	}
 	
 	/**
 	 * Closes the port and exits. Outstanding transfers will run to completion.
 	 */
-	private void quit() {
-		if (verbose) System.out.println("Closing port 69.");
-		port69.close();
-		System.out.println("Exiting.");
+	void quit() {
+		Log.debug("Closing port 69.");
 		exit = true;
+		for (Listener listener : listeners) listener.close();
+		if (loops != null) {
+			Log.debug("Stopping event loops.");
+			for (EventLoop loop : loops) loop.shutdown();
+		}
+		metrics.stop();
+		System.out.println("Exiting.");
+	}
+	
+	/**
+	 * Receives and services requests until the server is told to quit.  The first listener runs on the calling
+	 * thread, and any others on threads of their own.
+	 */
+	public void serve() {
+		for (int i = 1; i < listeners.length; i++) new Thread(listeners[i], "listener-" + i).start();
+		listeners[0].run();
+	}
+	
+	/**
+	 * @return The port the server listens for requests on.
+	 */
+	public int getPort() {
+		return listeners[0].socket.getLocalPort();
+	}
+	
+	/**
+	 * Receives requests on several threads, so that validating requests and answering bad ones doesn't hold up the
+	 * rest.  Must be called before serve().
+	 * <p>
+	 * Where the system supports SO_REUSEPORT, every listener gets a socket of its own on the request port, and the
+	 * kernel spreads clients over them.  Each client always lands on the same socket.  Elsewhere the listeners take
+	 * turns receiving from the one socket.
+	 * @param count The number of listener threads.
+	 * @throws IOException If the sockets could not be bound.
+	 */
+	public void setListeners(int count) throws IOException {
+		Listener[] started = new Listener[Math.max(1, count)];
+		DatagramChannel first = listeners[0].channel;
+		int port = getPort();
+		
+		if (started.length > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+			first.close();
+			for (int i = 0; i < started.length; i++) started[i] = new Listener(i, bind(port, true));
+		} else {
+			for (int i = 0; i < started.length; i++) started[i] = new Listener(i, first);
+		}
+		
+		listeners = started;
+		metrics.setListeners(started.length, port);
+	}
+	
+	/**
+	 * Opens a socket for requests.
+	 * @param port The port to bind, or 0 for any free port.
+	 * @param shared True to let other sockets bind the same port with SO_REUSEPORT.
+	 */
+	private static DatagramChannel bind(int port, boolean shared) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		
+		if (shared) channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		channel.bind(new InetSocketAddress(port));
+		
+		return channel;
+	}
+	
+	/**
+	 * @return How many times a window or packet has been sent again, over all transfers.
+	 */
+	public long getRetransmits() {
+		return metrics.getRetransmits();
+	}
+	
+	/**
+	 * Publishes the server's metrics as an MBean, and as a Prometheus page on a loopback port.
+	 * @param port The port for the metrics page, or 0 for JMX only.
+	 * @throws IOException If the port could not be bound.
+	 */
+	public void publishMetrics(int port) throws IOException {
+		metrics.register();
+		if (port > 0) metrics.serve(port);
+	}
+	
+	/**
+	 * Sets the directory files are read from and written to.
+	 * @param dir The directory, ending in /.
+	 */
+	void setDir(String dir) {
+		this.dir = dir;
+	}
+	
+	/**
+	 * Limits the block size the server will agree to, e.g. to keep packets within the path MTU.
+	 * @param size The largest block size to accept, between 8 and 65464.
+	 */
+	public void setMaxBlksize(int size) {
+		maxBlksize = Math.max(minBlksize, Math.min(size, maxBlksizeLimit));
+	}
+	
+	/**
+	 * Limits the window size the server will agree to.  Each transfer holds a window's worth of blocks in memory.
+	 * @param size The largest window size to accept, between 1 and 65535.
+	 */
+	public void setMaxWindowsize(int size) {
+		maxWindowsize = Math.max(1, Math.min(size, maxWindowsizeLimit));
+	}
+	
+	/**
+	 * Sets the block number which follows 65535, for clients which don't ask for one with the rollover option.
+	 * @param rollover 0 or 1.
+	 */
+	public void setRollover(int rollover) {
+		this.rollover = rollover == 1 ? 1 : 0;
+	}
+	
+	/**
+	 * Sets when data written by clients counts as durable.  The final block of a write is only acknowledged then.
+	 * @param policy none to hand the data to the operating system, close to also force the file to disk at the end,
+	 *        or a number of megabytes to force it after every time that much has been written as well.
+	 */
+	public void setSyncPolicy(String policy) {
+		syncPolicy = WriteBehind.policy(policy);
 	}
 	
 	/**
-	 * Receives requests.
+	 * Switches the server to the non-blocking engine.
 	 * <p>
-	 * Listens on port 69 for requests.
+	 * Instead of a thread per transfer, new transfers are spread round-robin over the given number of event loops.
+	 * @param count The number of event loop threads to run.
+	 * @throws IOException If a selector could not be opened.
 	 */
-	public void receive() {
-		request = new DatagramPacket(new byte[516], 516);
+	public void startEventLoops(int count) throws IOException {
+		EventLoop[] started = new EventLoop[count];
+		
+		for (int i = 0; i < count; i++) {
+			started[i] = new EventLoop();
+			started[i].start();
+		}
 		
+		loops = started;
+	}
+	
+	/**
+	 * Runs threaded transfers on virtual threads.
+	 * <p>
+	 * Virtual threads only exist from Java 21, so the executor is looked up at run time.  On older runtimes the
+	 * server keeps using platform threads.
+	 */
+	public void useVirtualThreads() {
 		try {
-			port69.receive(request);
-		} catch (IOException e) {
-			e.printStackTrace();
+			transfers = (Executor)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			threadKind = "virtual";
+		} catch (ReflectiveOperationException e) {
+			System.out.println("Virtual threads are not supported by this Java runtime.  Using platform threads.");
+		}
+	}
+	
+	/**
+	 * Keeps the contents of files being read in memory, so files served to many clients are read from disk once.
+	 * @param megabytes The most file data to keep in memory.
+	 * @param direct If true, the file data is kept outside the heap.
+	 */
+	public void useCache(long megabytes, boolean direct) {
+		cache = new BlockCache(megabytes * 1024 * 1024, direct);
+	}
+	
+	/**
+	 * Hands a transfer to the executor, keeping track of how many are running and how long it took to launch.
+	 * @param transfer The transfer to start.
+	 */
+	private void startTransfer(Transfer transfer) {
+		int now = active.incrementAndGet();
+		long start = System.nanoTime();
+		
+		while (now > peak.get() && !peak.compareAndSet(peak.get(), now));
+		
+		transfers.execute(transfer);
+		
+		launchNanos.addAndGet(System.nanoTime() - start);
+		started.incrementAndGet();
+	}
+	
+	/**
+	 * Prints how many transfers have been serviced and what it cost to start their threads.
+	 */
+	private void printStats() {
+		long count = started.get();
+		
+		System.out.print("Threads: "); System.out.println(threadKind);
+		System.out.print("Transfers started: "); System.out.print(count);
+		System.out.print("    Active: "); System.out.print(active.get());
+		System.out.print("    Peak: "); System.out.println(peak.get());
+		if (count > 0) {
+			System.out.print("Average thread start: ");
+			System.out.print(launchNanos.get() / count / 1000.0);
+			System.out.println(" us");
+		}
+		System.out.print("Retransmits: "); System.out.print(metrics.getRetransmits());
+		System.out.print("    Duplicate requests dropped: "); System.out.println(metrics.getDuplicateRequests());
+		long[] requests = metrics.getListenerRequests(), drops = metrics.getListenerDrops();
+		for (int i = 0; i < requests.length; i++) {
+			System.out.print("Listener "); System.out.print(i);
+			System.out.print(": "); System.out.print(requests[i]);
+			System.out.print(" requests, "); System.out.print(drops[i]); System.out.println(" dropped");
+		}
+		if (metrics.getKernelDrops() >= 0) {
+			System.out.print("Dropped by the kernel: "); System.out.println(metrics.getKernelDrops());
+		}
+		if (Log.getDropped() > 0) {
+			System.out.print("Log messages dropped: "); System.out.println(Log.getDropped());
 		}
+		if (cache != null) cache.printStats();
+	}
+	
+	/**
+	 * Fills a DATA packet with the next block of a file, from the cache if the file is cached or else from disk.
+	 * @param in The file, used if cached is null.
+	 * @param cached The cached contents of the file, or null.
+	 * @param packet The packet to fill, with the header already in place.
+	 * @param position Where in the file the block starts.
+	 * @param stop Where in the file the transfer ends, before the end of the file if only a range was asked for.
+	 * @return The number of bytes of the file put in the packet.
+	 * @throws IOException
+	 */
+	private static int readBlock(FileChannel in, ByteBuffer cached, ByteBuffer packet, long position, long stop)
+			throws IOException {
+		int start = packet.position();
+		
+		if (stop - position < packet.remaining()) packet.limit(start + (int)Math.max(0, stop - position));
+		
+		if (cached != null) {
+			if (position < cached.capacity()) {
+				cached.limit((int)Math.min(cached.capacity(), position + packet.remaining()));
+				cached.position((int)position);
+				packet.put(cached);
+			}
+		} else {
+			while (packet.hasRemaining()) {
+				if (in.read(packet, position + packet.position() - start) == -1) break;
+			}
+		}
+		
+		return packet.position() - start;
 	}
 	
 	private void changeDir() {
@@ -80,54 +364,279 @@ public class Server {
 	}
 	
 	/**
-	 * Generates an error message.
-	 * <p>
-	 * Builds an error message of the format:
-	 * {0x00, 0x05, 0x00, type, errorMsg}
+	 * Takes a pooled buffer large enough for an ERROR packet with the given message.  Release it once it's sent.
+	 */
+	private static byte[] errorBuffer(String errorMsg) {
+		return BufferPool.acquire(PacketCodec.HEADER + errorMsg.length() + 1);
+	}
+	
+	/**
+	 * Builds an ERROR packet with PacketCodec.  Every error built is sent, so this is where they are counted.
+	 * @param buf Where to build the packet, e.g. from errorBuffer.
 	 * @param type Which error condition is present.
-	 * @param errorMsg A more detailed message describing the error. 
-	 * @return A byte array containing the error.
+	 * @param errorMsg A more detailed message describing the error.
+	 * @return The length of the packet.
 	 */
-	public byte[] createErrorMsg(byte type, byte[] errorMsg) {
-		byte msg[] = new byte[errorMsg.length + 5];
+	int putError(byte[] buf, byte type, String errorMsg) {
+		metrics.errorSent(type);
+		return PacketCodec.putError(buf, type, errorMsg);
+	}
+	
+	/**
+	 * Generates an option acknowledgement.
+	 * <p>
+	 * Builds an OACK of the format:
+	 * {0x00, 0x06, option, 0x00, value, 0x00, ...}
+	 * @param options The options accepted and their values.
+	 * @return A byte array containing the OACK.
+	 */
+	public byte[] createOACK(Map<String, String> options) {
+		int length = 2;
 		
-		msg[0] = 0x00;
-		msg[1] = 0x05;
-		msg[2] = 0x00;
-		msg[3] = type;
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			length += PacketCodec.optionLength(option.getKey(), option.getValue());
+		}
 		
-		System.arraycopy(errorMsg, 0, msg, 4, errorMsg.length);
+		byte[] msg = new byte[length];
+		PacketCodec.putOACK(msg, options);
 		
-		msg[msg.length - 1] = 0x00;
-				
 		return msg;
 	}
+	
 	/**
-	 * Parses received packets to ensure that they are valid.
+	 * Decides which of the requested options the server will use.
 	 * <p>
-	 * Should not be called before receive().
+	 * Options the server doesn't know and options with unusable values are left out, so the client
+	 * falls back to the defaults for them (RFC 2347).
+	 * @param requested The options read out of the request, keyed by lower case name.
+	 * @param write True for a write request.
+	 * @param filename The name of the file requested.
+	 * @return The options accepted and their values.  Empty if the client should not get an OACK.
+	 */
+	private LinkedHashMap<String, String> negotiate(Map<String, String> requested, boolean write, String filename) {
+		LinkedHashMap<String, String> accepted = new LinkedHashMap<String, String>();
+		String value;
+		
+		// Block size (RFC 2348).  The server may answer with a smaller size than the client asked for.
+		if ((value = requested.get("blksize")) != null) {
+			try {
+				int size = Integer.parseInt(value.trim());
+				if (size >= minBlksize) accepted.put("blksize", Integer.toString(Math.min(size, maxBlksize)));
+			} catch (NumberFormatException e) {
+				Log.debug("Ignoring blksize {}", value);
+			}
+		}
+		
+		// Timeout in seconds (RFC 2349).  The server must use the value asked for, or leave the option out.
+		if ((value = requested.get("timeout")) != null) {
+			try {
+				int seconds = Integer.parseInt(value.trim());
+				if (seconds >= 1 && seconds <= 255) accepted.put("timeout", Integer.toString(seconds));
+			} catch (NumberFormatException e) {
+				Log.debug("Ignoring timeout {}", value);
+			}
+		}
+		
+		// Window size (RFC 7440).  Again, the server may answer with a smaller window.
+		if ((value = requested.get("windowsize")) != null) {
+			try {
+				int size = Integer.parseInt(value.trim());
+				if (size >= 1) accepted.put("windowsize", Integer.toString(Math.min(size, maxWindowsize)));
+			} catch (NumberFormatException e) {
+				Log.debug("Ignoring windowsize {}", value);
+			}
+		}
+		
+		// Block number rollover.  Not in any RFC, but some clients send it to say whether block numbers wrap around
+		// to 0 or 1 after 65535.  The server uses whichever they asked for.
+		if ((value = requested.get("rollover")) != null) {
+			value = value.trim();
+			if (value.equals("0") || value.equals("1")) accepted.put("rollover", value);
+			else Log.debug("Ignoring rollover {}", value);
+		}
+		
+		// Transfer size (RFC 2349).  A write says how big the file is, and the server answers with the same size.  A
+		// read asks with 0, and is told the size of the file unless it can't be read anyway.
+		if ((value = requested.get("tsize")) != null) {
+			try {
+				long size = Long.parseLong(value.trim());
+				File target = new File(dir + filename);
+				
+				if (write && size >= 0) accepted.put("tsize", Long.toString(size));
+				else if (!write && target.isFile()) accepted.put("tsize", Long.toString(target.length()));
+			} catch (NumberFormatException e) {
+				Log.debug("Ignoring tsize {}", value);
+			}
+		}
+		
+		// Byte range.  Not in any RFC: a read may ask for only part of the file, as <offset>:<length>, so that a
+		// client can fetch one file over several transfers at once.  A range running past the end of the file is cut
+		// short there.
+		if (!write && (value = requested.get("range")) != null) {
+			long[] range = PacketCodec.range(value);
+			File target = new File(dir + filename);
+			
+			if (range != null && target.isFile() && range[0] <= target.length()) {
+				accepted.put("range", PacketCodec.range(range[0], Math.min(range[1], target.length() - range[0])));
+			} else {
+				Log.debug("Ignoring range {}", value);
+			}
+		}
+		
+		return accepted;
+	}
+	
+	/**
+	 * Checks whether a file of the given size fits in the server directory, counting the space freed by the file it
+	 * replaces.  A directory which doesn't exist is left for the transfer to report.
+	 * @param filename The name of the file to be written.
+	 * @param size The size of the file.
+	 */
+	private boolean hasRoom(String filename, long size) {
+		File directory = new File(dir), target = new File(dir + filename);
+		
+		if (!directory.isDirectory()) return true;
+		return directory.getUsableSpace() + (target.isFile() ? target.length() : 0) >= size;
+	}
+	
+	/**
+	 * Sets up the retransmit timer for a transfer.  It adapts to the round trip time, unless the client
+	 * asked for a timeout of its own.
+	 * @param options The options accepted for the transfer.
+	 * @return The timer.
+	 */
+	private RetransmitTimer createTimer(Map<String, String> options) {
+		if (options.containsKey("timeout")) return new RetransmitTimer(1000 * Integer.parseInt(options.get("timeout")), false);
+		return new RetransmitTimer(timeout_ms, true);
+	}
+	
+	/**
+	 * Parses received packets to ensure that they are valid.  Called by every listener, so it may run on several
+	 * threads at once.
 	 * <p>
 	 * Ensures that received packets are of the format:
-	 * [0x00, packetType, fileName, 0x00, mode, 0x00]
+	 * [0x00, packetType, fileName, 0x00, mode, 0x00, (option, 0x00, value, 0x00)*]
 	 * where packetType is either 0x01 or 0x02 and that mode is either netascii or octet
-	 * in any case combination.
+	 * in any case combination.  Valid requests start a transfer, invalid ones are answered with error 4.  Writes
+	 * which announce a size the server has no room for are answered with error 3.
+	 * <p>
+	 * A request which repeats one whose transfer hasn't answered it yet, from the same client port for the same file,
+	 * is dropped.  The client sent it again or the network duplicated it, and the new transfer is about to answer it.
+	 * Starting a second transfer would send the client every block twice.  Once the transfer has answered, the same
+	 * request starts a new transfer, since a client only makes it again after its previous transfer has finished.
+	 * @param request The request received.  The transfer copies what it needs, so the packet can be reused.
+	 * @return True if a transfer was started.
 	 */
-	public void parsePacket() {
+	private boolean parsePacket(DatagramPacket request) {
 		Transfer transfer;
+		Session session;
+		EventLoop loop;
+		LinkedHashMap<String, String> options = parseRequest(request);
+		byte[] data = request.getData();
+		String file, key;
+		
+		// If the packet is a valid request, start a new transfer.
+		if (options != null) {
+			file = PacketCodec.filename(data, request.getLength());
+			key = requestKey(request.getAddress(), request.getPort(), data[1] == 0x02, file);
+			if (!inFlight.add(key)) {
+				Log.debug("Dropping duplicate request {}", key);
+				metrics.duplicateRequest();
+				return false;
+			}
+			
+			Log.debug("Valid request.  Starting transfer.");
+			metrics.requested(data[1] == 0x02);
+			
+			if (data[1] == 0x02 && options.containsKey("tsize")
+					&& !hasRoom(file, Long.parseLong(options.get("tsize")))) {
+				inFlight.remove(key);
+				reject(request, (byte)3, "Disk full or allocation exceeded.");
+				return false;
+			}
+			
+			if (loops != null) {
+				loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+				session = new Session(data[1] == 0x02, request, file, options);
+				
+				// A file which isn't cached yet is read in off the event loop, and the read starts once it has been.
+				if (data[1] == 0x01 && cache != null) {
+					cache.lookup(session.filename).whenComplete((contents, e) -> {
+						session.cached = contents;
+						loop.submit(session);
+					});
+				} else {
+					loop.submit(session);
+				}
+			} else {
+				transfer = new Transfer(data[1] == 0x02, request, file, options);
+				startTransfer(transfer);
+			}
+			
+			return true;
+		} else {
+			// Invalid TFTP operation requested, send error response.
+			reject(request, (byte)4, error4);
+			return false;
+		}
+	}
+	
+	/**
+	 * Identifies a request by who sent it and what it asks for, to tell a repeated request from a new one.
+	 * @param address The address the request came from.
+	 * @param port The port the request came from.
+	 * @param write True for a WRQ, false for an RRQ.
+	 * @param filename The name of the file requested.
+	 */
+	private static String requestKey(InetAddress address, int port, boolean write, String filename) {
+		return (write ? "WRQ " : "RRQ ") + address.getHostAddress() + ":" + port + " " + filename.trim();
+	}
+	
+	/**
+	 * Answers a request with an error, from a new port as a transfer would.
+	 * @param request The request received.
+	 * @param code The error code.
+	 * @param message The error message.
+	 */
+	private void reject(DatagramPacket request, byte code, String message) {
+		DatagramSocket sock;
+		byte[] emsg = errorBuffer(message);
+		int length = putError(emsg, code, message);
+		
+		Log.debug(message);
+		
+		try {
+			sock = new DatagramSocket();
+			sock.send(new DatagramPacket(emsg, length, request.getAddress(), request.getPort()));	//send error
+			sock.close();
+		} catch (SocketException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		BufferPool.release(emsg);
+	}
+	
+	/**
+	 * Validates a request and reads out the filename, mode and options.
+	 * @param request The request received.
+	 * @return The options accepted for the transfer, or null if the request is invalid.
+	 */
+	LinkedHashMap<String, String> parseRequest(DatagramPacket request) {
+		LinkedHashMap<String, String> options;
+		byte[] file, mode;
+		boolean valid;
 		int i, j;
 		
-		if (verbose) System.out.println("Parsing packet.");
+		Log.debug("Parsing packet.");
 		
 		byte[] data = request.getData();
 		
-		if (verbose) {
-			System.out.print("Opcode ");
-			System.out.println(new Integer(data[1]));
-			System.out.println();
-		}
+		Log.debug("Opcode {}", data[1]);
 		
-		// Valid if the packet is no longer than 516 bytes (4 byte header, 512 bytes of data).
-		valid = data.length <= 516;
+		// Valid if the packet fits in 516 bytes.  Options must fit in the request too.
+		valid = request.getLength() <= maxRequest;
 		
 		file = new byte[data.length];
 		mode = new byte[netascii.length()];
@@ -139,10 +648,9 @@ public class Server {
 		i = 2; j = 0;
 		while (data[i] != 0x00 && i < request.getLength()) {
 			file[j++] = data[i++];
-			if (verbose) System.out.print((char)file[j - 1]);
 		}
 		
-		if (verbose) System.out.println();
+		if (Log.debug()) Log.debug("Filename {}", new String(file, 0, j));
 		
 		// Valid if the filename is one or more characters long and there is data after the terminating 0x00.
 		valid = i > 2 && i++ < data.length && valid;
@@ -151,36 +659,75 @@ public class Server {
 		j = 0;
 		while (data[i] != 0x00 && i < request.getLength() && j < netascii.length()) {
 			mode[j++] = data[i++]; 
-			if (verbose) System.out.print((char)mode[j - 1]);
 		}
 		
-		if (verbose) System.out.println();
+		if (Log.debug()) Log.debug("Mode {}", new String(mode, 0, j));
 		
 		// Valid if mode is equal to either netascii or octet in any case combination.
 		valid = (new String(mode).toLowerCase().trim().equals(netascii) || new String(mode).toLowerCase().trim().equals(octet)) && valid;
 		// Valid if a read/write request and terminated with 0x00.
 		valid = ((data[1] == 0x01 || data[1] == 0x02) && data[i] == 0x00)  && valid;
 		
-		// If the packet is a valid request, start a new transfer.
-		if (valid) {
-			if (verbose) System.out.println("Valid request.  Starting transfer.");
-			
-			transfer = new Transfer(data[1] == 0x02, request, new String(file));
-			transfer.start();
-		} else {
-			// Invalid TFTP operation requested, send error response.
-			DatagramSocket sock;
+		// Read out any options following the mode.  An option missing its terminating 0x00 is ignored.
+		options = new LinkedHashMap<String, String>();
+		while (valid && ++i < request.getLength()) {
+			j = i;
+			while (i < request.getLength() && data[i] != 0x00) i++;
+			String name = new String(data, j, i - j).toLowerCase();
 			
-			byte[] emsg = createErrorMsg((byte)4, error4.getBytes());
+			j = ++i;
+			while (i < request.getLength() && data[i] != 0x00) i++;
+			if (i >= request.getLength()) break;
 			
-			if (verbose) System.out.println(error4);
+			options.put(name, new String(data, j, i - j));
+			Log.debug("Option {} = {}", name, options.get(name));
+		}
+		
+		return valid ? negotiate(options, data[1] == 0x02, new String(file).trim()) : null;
+	}
+	
+	/**
+	 * Listener
+	 * A listener receives requests on one socket, or its turn of a shared one, and starts their transfers.
+	 */
+	private class Listener implements Runnable {
+		private final int shard;
+		private final DatagramChannel channel;
+		private final DatagramSocket socket;
+		// Transfers copy what they need out of the request, so the same packet is reused for every request.
+		private final DatagramPacket request;
+		
+		public Listener(int shard, DatagramChannel channel) {
+			this.shard = shard;
+			this.channel = channel;
 			
+			socket = channel.socket();
+			request = new DatagramPacket(new byte[maxRequest], maxRequest);
+		}
+		
+		/**
+		 * Receives and services requests until the server is told to quit.
+		 */
+		public void run() {
+			while (!exit) {
+				request.setLength(maxRequest);
+				
+				try {
+					socket.receive(request);
+				} catch (IOException e) {
+					// Closing the port to quit ends the receive with an exception.
+					if (!exit) e.printStackTrace();
+					continue;
+				}
+				
+				metrics.listened(shard);
+				if (!parsePacket(request)) metrics.listenerDropped(shard);
+			}
+		}
+		
+		public void close() {
 			try {
-				sock = new DatagramSocket();
-				sock.send(new DatagramPacket(emsg, emsg.length, request.getAddress(), request.getPort()));	//send error
-				sock.close();
-			} catch (SocketException e) {
-				e.printStackTrace();
+				channel.close();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -204,9 +751,11 @@ public class Server {
 		 */
 		private void printUI() {
 			System.out.println("V - Toggle verbose mode");
+			System.out.println("P - Toggle payload dumps in verbose mode");
 			System.out.println("C - Change server directory");
+			System.out.println("S - Show transfer statistics");
 			System.out.println("Q - Quit");
-			System.out.print("Verbose: "); System.out.println(verbose);
+			System.out.print("Log level: "); System.out.println(Log.getLevelName());
 		}
 		
 		/**
@@ -228,7 +777,11 @@ public class Server {
 							  break;
 						case 'c': changeDir();
 								break;
-						case 'v': verbose = !verbose;
+						case 's': printStats();
+								break;
+						case 'v': Log.toggle(Log.DEBUG);
+							  break;
+						case 'p': Log.toggle(Log.PAYLOAD);
 							  break;
 					}
 				
@@ -249,36 +802,66 @@ public class Server {
 	 * Transfer
 	 * @author Matthew
 	 * The transfer class handles multi-threaded file transfers.  When the server receives a valid read or write request,
-	 * it creates a Transfer to service the request.
+	 * it creates a Transfer to service the request and hands it to the server's executor.
 	 */
-	private class Transfer extends Thread {
+	private class Transfer implements Runnable {
+		private static final int TIMEOUT = -1;
+		private static final int END = -2;
+		
 		private boolean type;
-		private int port;
-		private byte[] rData;
+		private int port, blksize, windowsize, rollover;
+		private byte[] rData, aData, oack;
+		private DatagramChannel channel;
 		private DatagramSocket sock;
-		private DatagramPacket sPkt, rPkt;
+		private DatagramPacket sPkt, rPkt, aPkt;
 		private InetAddress target;
-		private String filename;
+		private String filename, key;
+		private RetransmitTimer timer;
+		// The bytes of the file moved so far, whether all of it was, and the size the client announced for a write.
+		private long bytes, tsize;
+		// Where in the file a read starts and stops.  The whole file unless a range was asked for.
+		private long offset, stop;
+		private boolean completed;
 		
 		/**
 		 * Constructor for the Transfer class
 		 * @param type If true, the transfer is a write request.  Else, it's a read request.
 		 * @param request The request which spawned the transfer.
 		 * @param filename The name of the file requested.
-		 * @param verbose Indicates whether this transfer is in verbose mode.
+		 * @param options The options accepted for this transfer.
 		 */
-		public Transfer(boolean type, DatagramPacket request, String filename) {
+		public Transfer(boolean type, DatagramPacket request, String filename, Map<String, String> options) {
 			this.type = type;
 			this.filename = dir + filename.trim();
 			
 			target = request.getAddress();
 			port = request.getPort();
+			key = requestKey(target, port, type, filename);
 			
-			rData = new byte[516];
+			blksize = options.containsKey("blksize") ? Integer.parseInt(options.get("blksize")) : defaultBlksize;
+			windowsize = options.containsKey("windowsize") ? Integer.parseInt(options.get("windowsize")) : 1;
+			rollover = options.containsKey("rollover") ? Integer.parseInt(options.get("rollover")) : Server.this.rollover;
+			tsize = options.containsKey("tsize") ? Long.parseLong(options.get("tsize")) : 0;
+			long[] range = options.containsKey("range") ? PacketCodec.range(options.get("range")) : null;
+			offset = range != null ? range[0] : 0;
+			stop = range != null ? range[0] + range[1] : Long.MAX_VALUE;
+			oack = options.isEmpty() ? null : createOACK(options);
+			timer = createTimer(options);
 			
+			// Packets are received into a pooled buffer and acknowledges built in place, so no block allocates.  The
+			// buffer has a byte to spare, so that a DATA packet longer than the block size can be told apart.
+			rData = BufferPool.acquire(blksize + PacketCodec.HEADER + 1);
+			rPkt = new DatagramPacket(rData, blksize + PacketCodec.HEADER + 1);
+			aData = new byte[PacketCodec.HEADER];
+			aPkt = new DatagramPacket(aData, aData.length, target, port);
+			
+			// The channel sends file data straight from direct buffers.  Its socket handles everything else, since
+			// only the socket can wait for a packet with a timeout.
 			try {
-				sock = new DatagramSocket();
-			} catch (SocketException e) {
+				channel = DatagramChannel.open();
+				channel.bind(null);
+				sock = channel.socket();
+			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
@@ -299,7 +882,7 @@ public class Server {
 		 * Waits to receive a packet from the connected client.
 		 */
 		public void receive() throws SocketTimeoutException {
-			rPkt = new DatagramPacket(rData, 516);
+			rPkt.setLength(blksize + PacketCodec.HEADER + 1);
 			
 			try {
 				sock.receive(rPkt);
@@ -310,380 +893,1136 @@ public class Server {
 			}
 		}
 		
-		private void readReceive() {
-			boolean success = false;
-			
-			while (!success) {
-				try {
-					receive();
-					success = true;
-				} catch (SocketTimeoutException e) {
-					if (verbose) System.out.println("Receive timed out.  Retransmitting.");
-					send(sPkt);
-					success = false;
-				}
-			}
+		/**
+		 * Prints the error packet received from the client.
+		 */
+		private void printError() {
+			metrics.errorReceived(PacketCodec.block(rData));
+			Log.debug("Error code {} received.  Ending transfer.", PacketCodec.block(rData));
+			System.out.println(PacketCodec.errorMessage(rPkt.getData(), rPkt.getLength()));
 		}
 		
 		/**
-		 * Services a write transfer.  Reads from the client over the network and writes the file locally.
-		 * @throws IOException
+		 * Sends an error, built in a pooled buffer.
+		 * @param type The error code.
+		 * @param errorMsg The error message.
+		 * @param address Where to send it.
+		 * @param to The port to send it to.
 		 */
-		private void write() throws IOException {
-			byte[] data;
-			BufferedOutputStream out;
+		private void error(byte type, String errorMsg, InetAddress address, int to) {
+			byte[] msg = errorBuffer(errorMsg);
 			
-			byte[] response = new byte[4];
-			byte[] block = {0x00, 0x00};
-			
-			// Opens the file to write.
-			if (verbose) System.out.println("Opening file.");
+			Log.debug(errorMsg);
+			send(new DatagramPacket(msg, putError(msg, type, errorMsg), address, to));
+			BufferPool.release(msg);
+		}
+		
+		/**
+		 * Answers a packet which came from an unknown source.
+		 */
+		private void rejectTID() {
+			error((byte)5, badTID, rPkt.getAddress(), rPkt.getPort());
+		}
+		
+		/**
+		 * Tells the client that it sent a packet which doesn't belong in the transfer.
+		 */
+		private void rejectOpcode() {
+			error((byte)4, error4, target, port);
+		}
+		
+		/**
+		 * Waits for the client to acknowledge one of the blocks in the range given.
+		 * <p>
+		 * Packets from unknown sources are answered with an error, and acknowledges for blocks before the range
+		 * are skipped.
+		 * @param first The earliest block which may be acknowledged.
+		 * @param last The latest block which may be acknowledged.
+		 * @return The block acknowledged, TIMEOUT if it should be sent again, or END if the transfer must end.
+		 */
+		private int ackReceive(int first, int last) {
+			int number;
 			
-			try {
-				out = new BufferedOutputStream(new FileOutputStream(filename));
-			} catch (FileNotFoundException e) {
-				String errorMsg = "You don't have permission to write to " + filename + ".";
-				byte[] msg = createErrorMsg((byte)0x02, errorMsg.getBytes());
-				if (verbose) System.out.println(errorMsg);
-				DatagramPacket errorPkt = new DatagramPacket(msg, msg.length, target, port);
-				send(errorPkt);
+			while (true) {
+				try {
+					receive();
+				} catch (SocketTimeoutException e) {
+					return TIMEOUT;
+				}
+				
+				//Response came from an unknown source.
+				if (!rPkt.getAddress().equals(target) || rPkt.getPort() != port) {
+					rejectTID();
+					continue;
+				}
+				
+				if (PacketCodec.opcode(rData) == PacketCodec.ACK) {
+					number = PacketCodec.block(rData);
+					
+					Log.debug("Received acknowledge for block {}", number);
+					
+					// Work out which of the blocks sent the 16 bit block number refers to.
+					number = PacketCodec.ackedBlock(last, number, rollover);
+					if (number >= first) return number;
+					metrics.duplicateAck();
+				} else if (PacketCodec.opcode(rData) == PacketCodec.ERROR) {
+					if (PacketCodec.block(rData) == 5) {
+						Log.debug("Data sent to incorrect client, attempting to retransfer");
+						return TIMEOUT;
+					}
+					
+					printError();
+					return END;
+				} else {
+					rejectOpcode();
+					return END;
+				}
+			}
+		}
+		
+		/**
+		 * Ends a transfer whose client has stopped responding.
+		 * @return END
+		 */
+		private int giveUp() {
+			System.out.println("Client stopped responding.  Ending transfer of " + filename + ".");
+			return END;
+		}
+		
+		/**
+		 * Builds and sends the acknowledge for the given block.
+		 * @param block The block to acknowledge.
+		 */
+		private void ack(int block) {
+			PacketCodec.putAck(aData, PacketCodec.wireBlock(block, rollover));
+			
+			Log.debug("Sending acknowledge for block {}", PacketCodec.wireBlock(block, rollover));
+			
+			sPkt = aPkt;
+			send(sPkt);
+		}
+		
+		/**
+		 * Services a write transfer.  Reads from the client over the network and writes the file locally.
+		 * <p>
+		 * Blocks are acknowledged once a whole window of them has arrived in order, or at the final block.  If a block
+		 * goes missing, the last block received in order is acknowledged so that the client starts again after it.
+		 * <p>
+		 * Blocks are written to the file behind the transfer, so only the final acknowledge waits for the disk.
+		 * @throws IOException
+		 */
+		private void write() throws IOException {
+			WriteBehind out;
+			int number;
+			// The last block received in order, and how many have arrived since it was last acknowledged.
+			int received = 0, sinceAck = 0;
+			boolean gapAcked = false, finished = false;
+			
+			// Opens the file to write.
+			Log.debug("Opening file.");
+			
+			try {
+				out = new WriteBehind(new FileOutputStream(filename).getChannel(), blksize, windowsize, syncPolicy);
+			} catch (FileNotFoundException e) {
+				error((byte)0x02, "You don't have permission to write to " + filename + ".", target, port);
 				return;
 			}
 			
-			sock.setSoTimeout(0);
+			// Give the file its full size up front, if the client said how big it is.
+			if (tsize > 0) try {
+				out.preallocate(tsize);
+			} catch (IOException e) {
+				error((byte)0x03, "Disk full or allocation exceeded.", target, port);
+				out.close();
+				return;
+			}
 			
-			// Build and send the request response.
-			response[0] = 0x00;
-			response[1] = 0x04;
-			System.arraycopy(block, 0, response, 2, 2);
-			block[1]++;
+			sock.setSoTimeout(0);
 			
-			if (verbose) System.out.println(new String(response));
-			if (verbose) System.out.println("Sending response.");
-			sPkt = new DatagramPacket(response, response.length, target, port);
-			send(sPkt);
+			// Send the request response.  If options were accepted the OACK takes the place of the acknowledge.
+			Log.debug("Sending response.");
+			if (oack != null) {
+				sPkt = new DatagramPacket(oack, oack.length, target, port);
+				send(sPkt);
+			} else {
+				ack(0);
+			}
+			answered();
 			
-			if (verbose) System.out.println("Starting write.");
+			Log.debug("Starting write.");
 
 			/*
-			 * While the packet length is 516 bytes (4 byte header, 512 bytes data):
+			 * Until the final block (shorter than the block size) has been written:
 			 *    - Receive the next data packet.
-			 *    - Increment the block number.
-			 *    - Separate the data from the header.
-			 *    - Write the data to the file.
-			 *    - Build and send the response.
+			 *    - If it is the next block in order, write it to the file.
+			 *    - Acknowledge at the end of a window, on the final block, on a repeated window or on a missing block.
 			 */
 			do {
 				receive();
 				
-				if (verbose && rPkt.getData()[1] == (byte)0x03) {
- 					System.out.print("Received ");
- 					System.out.println(new String(rPkt.getData()));
- 					System.out.print(rPkt.getLength());
- 					System.out.println(" bytes");
- 					System.out.print("Opcode ");
- 					System.out.println(new Integer(rPkt.getData()[1]));
- 					System.out.print("Block ");
- 					System.out.println(0xff & rPkt.getData()[3] + 256 * (0xff & rPkt.getData()[2]));
- 					System.out.println();
- 				}
-				
 				// The received packet came from an unknown source.
 				if (!rPkt.getAddress().equals(target) || rPkt.getPort() != port) {
-					if (verbose) System.out.println(badTID);
-					
-					byte[] errorData =createErrorMsg((byte)5, badTID.getBytes());
-					sPkt  = new DatagramPacket(errorData, errorData.length, rPkt.getAddress(), rPkt.getPort());
-					send(sPkt);
+					rejectTID();
 					continue;
 				}
-				if(!(rPkt.getData()[1] == (byte)0x03 || rPkt.getData()[1] == (byte)0x05 )){
-					if (verbose) System.out.println(error4);
-					
-					byte[] errorData =createErrorMsg((byte)4, error4.getBytes());
-					sPkt  = new DatagramPacket(errorData, errorData.length, rPkt.getAddress(), rPkt.getPort());
-					send(sPkt);
-					quit();
-				}
-
-				// While received error packet, handle error.
-				while (rPkt.getData()[1] == (byte)0x05) {
-					if (rPkt.getData()[3] == (byte)0x05) {
-						if (verbose) System.out.println("Acknowledge went to incorrect client, attempting to retransfer");
-						
+				
+				if (PacketCodec.opcode(rData) == PacketCodec.ERROR) {
+					if (PacketCodec.block(rData) == 5) {
+						Log.debug("Acknowledge went to incorrect client, attempting to retransfer");
 						send(sPkt);
-						receive();
-						
-						if ((0xff & rPkt.getData()[3] + 256 * (0xff & rPkt.getData()[2])) <= (0xff & block[1] + 256 * (0xff & block[0]) - 1)) {
-							send(sPkt);
-							continue;
-						}
-						
-						// If the next packet is correct, print packet information.
-						if (verbose && rPkt.getData()[1] == (byte)0x03) {
-							System.out.print("Received ");
-		 					System.out.println(new String(rPkt.getData()));
-		 					System.out.print(rPkt.getLength());
-		 					System.out.println(" bytes");
-		 					System.out.print("Opcode ");
-		 					System.out.println(new Integer(rPkt.getData()[1]));
-		 					System.out.print("Block ");
-		 					System.out.println(0xff & rPkt.getData()[3] + 256 * (0xff & rPkt.getData()[2]));
-		 					System.out.println();
-		 				}
-					} else if (rPkt.getData()[3] == (byte)0x04) {
-						// Invalid TFTP operation. Unrecoverable by definition.
-						byte[] errorMsg = new byte[rPkt.getLength()];
-						
-						System.arraycopy(rPkt.getData(), 4, errorMsg, 0, rPkt.getLength() - 5);
-						
-						if (verbose) System.out.println("Error code 4, Invalid TFTP Operation");
-						if (verbose) System.out.println(new String(errorMsg));
-						
-						quit();
+						continue;
 					}
+					
+					printError();
+					out.close();
+					return;
 				}
 				
-				if ((0xff & rPkt.getData()[3] + 256 * (0xff & rPkt.getData()[2])) == (0xff & block[1] + 256 * (0xff & block[0]) - 1)) {
-					send(sPkt);
-					continue;
+				// A block longer than the block size doesn't belong in the transfer either.
+				if (PacketCodec.opcode(rData) != PacketCodec.DATA || rPkt.getLength() > blksize + PacketCodec.HEADER) {
+					rejectOpcode();
+					out.close();
+					return;
 				}
 				
-				// Separate data from header.
-				data = new byte[rPkt.getLength() - 4];
-				System.arraycopy(rPkt.getData(), 4, data, 0, rPkt.getLength() - 4);
+				// Work out which block the 16 bit block number refers to, relative to the one expected.
+				number = PacketCodec.block(rData);
+				number = PacketCodec.dataBlock(received + 1, number, rollover);
 				
-				if (verbose) {
-					System.out.print("Output ");
-					System.out.println(new String(data));
-					System.out.println();
-				}
+				Log.debug("Received block {}, {} bytes", PacketCodec.block(rData), rPkt.getLength() - 4);
+				Log.payload(PacketCodec.block(rData), rData, 4, rPkt.getLength() - 4);
+				
+				if (number != received + 1) metrics.duplicateData();
 				
-				if ((0xff & rPkt.getData()[3] + 256 * (0xff & rPkt.getData()[2])) == (0xff & block[1] + 256 * (0xff & block[0]) - 1)) {
+				if (number == received + 1) {
+					finished = rPkt.getLength() < blksize + 4;
+					
+					// The final acknowledge says the whole file has been written, so it waits until it's durable.
 					try {
-						out.write(data, 0, data.length);
+						out.write(rPkt.getData(), 4, rPkt.getLength() - 4);
+						if (finished) out.finish();
 					} catch (IOException e) {
-						String errorMsg = "Disk full or allocation exceeded.";
-						byte[] msg = createErrorMsg((byte)0x03, errorMsg.getBytes());
-						if (verbose) System.out.println(errorMsg);
-						DatagramPacket errorPkt = new DatagramPacket(msg, msg.length, target, port);
-						send(errorPkt);
+						error((byte)0x03, "Disk full or allocation exceeded.", target, port);
+						out.close();
 						return;
 					}
-					out.flush();
 					
-					if (block[1]++ == (byte)0xff) block[0]++;
+					received = number;
+					gapAcked = false;
+					bytes += rPkt.getLength() - 4;
+					metrics.dataReceived(rPkt.getLength() - 4);
+					
+					if (++sinceAck == windowsize || finished) {
+						ack(received);
+						sinceAck = 0;
+					}
+				} else if (number == received) {
+					// The end of the window arrived again, so its acknowledge must have been lost.
+					ack(received);
+					sinceAck = 0;
+				} else if (number > received && !gapAcked) {
+					// A block went missing.  Have the client start again after the last one received in order.
+					ack(received);
+					gapAcked = true;
+					sinceAck = 0;
 				}
-				
-				// Build and send acknowledge packet.
-				response = new byte[4];
-				response[0] = 0x00;
-				response[1] = 0x04;
-				response[2] = rPkt.getData()[2];
-				response[3] = rPkt.getData()[3];
-				
-				if (verbose) {
-					System.out.print("Sending acknowledge for block ");
- 					System.out.println(0xff & rPkt.getData()[3] + 256 * (0xff & rPkt.getData()[2]));
- 					System.out.println();
- 				}
-				
-				sPkt = new DatagramPacket(response, response.length, target, port);
-				send(sPkt);
-			} while (rPkt.getLength() == 516);
+			} while (!finished);
 			
 			out.close();
+			completed = true;
 			System.out.println("Finished write.");
 		}
 		
 		/**
 		 * Services a read transfer.  Reads from local file and writes to the client over the network.
+		 * <p>
+		 * Up to windowsize blocks are sent before waiting for an acknowledge.  The client acknowledges the last block of
+		 * the window, or the last block it received in order if one went missing, and the next window starts from the
+		 * block after that.  On a timeout the window is sent again from the first unacknowledged block.
+		 * <p>
+		 * Blocks are read from the file by position straight into direct buffers behind their headers, and sent from
+		 * there, so no block is copied onto the heap and nothing is allocated once the window has been set up.
 		 * @throws IOException
 		 */
 		private void read() throws IOException {
-			int sizeRead;
-			byte[] response;
-			byte[] data = new byte[512];
-			byte[] block = {0x00, 0x00};
+			int acked, n;
+			long position = offset;
+			FileChannel in = null;
+			ByteBuffer packet, cached = null;
+			ByteBuffer[] window;
+			InetSocketAddress client = new InetSocketAddress(target, port);
+			// The next block to read from the file, the first block not yet acknowledged and the final block.
+			int next = 1, base = 1, end = -1;
+			// The first block of the window last sent again because an acknowledge showed a block missing.
+			int resent = 0;
+			boolean fresh = true;
 			
-			boolean success = false;
-			
-			//Opens file to read.
-			if (verbose) System.out.println("Opening file.");
-			BufferedInputStream in=null;
-			try {
-				in= new BufferedInputStream(new FileInputStream(filename));
+			//Opens file to read, unless its contents are cached.
+			if (cache != null) cached = cache.get(filename);
+			Log.debug(cached != null ? "Reading file from the cache." : "Opening file.");
+			if (cached == null) try {
+				in = new FileInputStream(filename).getChannel();
 			} catch (FileNotFoundException e) {
-				String errorMsg = "The file " + filename + " could not be found.";
-				byte[] msg = createErrorMsg((byte)0x01, errorMsg.getBytes());
-				if (verbose) System.out.println(errorMsg);
-				DatagramPacket errorPkt = new DatagramPacket(msg, msg.length, target, port);
-				send(errorPkt);
+				error((byte)0x01, "The file " + filename + " could not be found.", target, port);
 				return;
 			} catch (SecurityException e) {
-				String errorMsg = "You don't have permission to read " + filename + ".";
-				byte[] msg = createErrorMsg((byte)0x02, errorMsg.getBytes());
-				if (verbose) System.out.println(errorMsg);
-				DatagramPacket errorPkt = new DatagramPacket(msg, msg.length, target, port);
-				send(errorPkt);
+				error((byte)0x02, "You don't have permission to read " + filename + ".", target, port);
 				return;
 			}
 			
+			// Send the option acknowledgement, and wait for the client to accept it by acknowledging block 0.
+			if (oack != null) {
+				Log.debug("Sending option acknowledgement.");
+				sPkt = new DatagramPacket(oack, oack.length, target, port);
+				timer.sent();
+				
+				do {
+					send(sPkt);
+					answered();
+					sock.setSoTimeout(timer.getTimeout());
+					acked = ackReceive(0, 0);
+					
+					if (acked == TIMEOUT && !timer.timedOut()) acked = giveUp();
+					else if (acked == TIMEOUT) Log.debug("Receive timed out.  Retransmitting.");
+					if (acked == TIMEOUT) metrics.retransmitted();
+				} while (acked == TIMEOUT);
+				
+				if (acked == END) {
+					if (in != null) in.close();
+					return;
+				}
+				
+				timer.acked();
+			}
 			
-			sock.setSoTimeout(timeout_ms);
-			
-			//Read in first 512 byte block.
-			sizeRead = in.read(data);
+			window = new ByteBuffer[windowsize];
+			for (n = 0; n < windowsize; n++) window[n] = ByteBuffer.allocateDirect(blksize + 4);
 			
-			if (verbose) System.out.println("Starting read.");
+			Log.debug("Starting read.");
 		
 			/*
-			 * While the end of the file hasn't been reached:
-			 *   - Increment the block number
-			 *   - Build and send the data packet
-			 *   - Wait for the acknowledge
-			 *   - Read in the next 512 byte block of data
+			 * Until the final block has been acknowledged:
+			 *   - Read in the blocks of the window which haven't been read yet
+			 *   - Send every block of the window
+			 *   - Wait for the acknowledge, and move the window to the block after the one acknowledged
+			 * Round trips are only timed for windows sent for the first time.
 			 */
-			while (sizeRead != -1) {
-				if (block[1]++ == (byte)0xff) block[0]++;
-				
-				if (verbose) System.out.print("Read ");
-				if (verbose) System.out.println(new String(data));
+			while (end == -1 || base <= end) {
+				for (n = base; n < base + windowsize && (end == -1 || n <= end); n++) {
+					packet = window[(n - 1) % windowsize];
+					
+					if (n == next) {
+						packet.clear();
+						packet.put((byte)0x00).put((byte)0x03).putShort((short)PacketCodec.wireBlock(n, rollover));
+						
+						position += readBlock(in, cached, packet, position, stop);
+						packet.flip();
+						
+						// A short block ends the file.  This is an empty block if the file fills its last block exactly.
+						if (packet.limit() - 4 < blksize) end = n;
+						next++;
+					}
+					
+					packet.rewind();
+					Log.debug("Sending block {}, {} bytes", PacketCodec.wireBlock(n, rollover), packet.limit() - 4);
+					Log.payload(PacketCodec.wireBlock(n, rollover), packet);
+
+					channel.send(packet, client);
+					metrics.dataSent(packet.limit() - 4);
+				}
+				answered();
 				
-				//Build the data packet.
-				response = new byte[sizeRead + 4];
+				if (fresh) timer.sent();
+				else timer.resent();
 				
-				response[0] = 0x00;
-				response[1] = 0x03;
-				System.arraycopy(block, 0, response, 2, 2);
-				System.arraycopy(data, 0, response, 4, sizeRead);
+				sock.setSoTimeout(timer.getTimeout());
+				acked = ackReceive(base - 1, n - 1);
 				
-				if (verbose) {
-					System.out.print("Sent ");
-					System.out.println(new String(response));
-					System.out.print("Opcode ");
-					System.out.println(new Integer(response[1]));
-					System.out.print("Block ");
- 					System.out.println(0xff & block[1] + 256 * (0xff & block[0]));
-					System.out.println();
+				// A repeated acknowledge of the block before the window is left to the timer.  Answering each one with
+				// the whole window would double the traffic every time one was duplicated.  In a larger window the
+				// first one means a block went missing, so that window goes out again once.
+				while (acked == base - 1 && (windowsize == 1 || resent == base)) {
+					metrics.duplicateAck();
+					acked = ackReceive(base - 1, n - 1);
 				}
+				if (acked == base - 1) resent = base;
 				
-				sPkt = new DatagramPacket(response, sizeRead + 4, target, port);
-				send(sPkt);
+				if (acked == TIMEOUT && !timer.timedOut()) acked = giveUp();
+				
+				if (acked == END) {
+					if (in != null) in.close();
+					return;
+				}
 				
-				while (!success) {
-					readReceive();
-					if (rPkt.getData()[1] != (byte) 0x04 || (rPkt.getData()[3] == block[1] && rPkt.getData()[2] == block[0])) success = true;
+				if (acked == TIMEOUT) {
+					Log.debug("Receive timed out.  Retransmitting.");
+					fresh = false;
+				} else {
+					// An acknowledge which doesn't move the window means the same window goes out again.
+					fresh = acked >= base;
+					if (fresh) timer.acked();
+					else metrics.duplicateAck();
+					base = acked + 1;
 				}
 				
-				success = false;
+				if (!fresh) metrics.retransmitted();
+			}
+			
+			if (in != null) in.close();
+			bytes = position - offset;
+			completed = true;
+			Log.debug("Finished read.");
+		}
+		
+		/**
+		 * Lets the client make the same request again, once the transfer has sent its first packet.  Only the first
+		 * call has any effect, so a later transfer for the same request is left alone.
+		 */
+		private void answered() {
+			if (key != null) inFlight.remove(key);
+			key = null;
+		}
+		
+		/**
+		 * Starts the file transfer according to what type of request it was.
+		 */
+		public void run() {
+			long start = System.nanoTime();
+			
+			metrics.sessionStarted();
+			
+			try {
+				if (type) {
+					write();
+				} else {
+					read();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				// Cached contents of a file which has been written to are stale.
+				if (type && cache != null) cache.invalidate(filename);
+				if (sock != null) sock.close();
+				BufferPool.release(rData);
+				answered();
+				active.decrementAndGet();
+				metrics.sessionEnded(completed, bytes, System.nanoTime() - start);
+			}
+		}
+	}
+	
+	/**
+	 * EventLoop
+	 * The event loop services transfers without dedicating a thread to each one.  Every transfer still gets its own
+	 * channel (and so its own TID), but the channels are non-blocking and a single selector watches all of them.
+	 */
+	private class EventLoop extends Thread {
+		private Selector selector;
+		private ConcurrentLinkedQueue<Session> pending, synced, drained;
+		private ArrayList<Session> sessions;
+		private ByteBuffer rBuf;
+		private long nextCheck;
+		private volatile boolean running;
+		
+		public EventLoop() throws IOException {
+			selector = Selector.open();
+			pending = new ConcurrentLinkedQueue<Session>();
+			synced = new ConcurrentLinkedQueue<Session>();
+			drained = new ConcurrentLinkedQueue<Session>();
+			sessions = new ArrayList<Session>();
+			// A byte to spare, so that a DATA packet longer than the block size can be told apart.
+			rBuf = ByteBuffer.allocateDirect(maxBlksizeLimit + PacketCodec.HEADER + 1);
+			running = true;
+			
+			setDaemon(true);
+		}
+		
+		/**
+		 * Hands a new transfer to this loop.  May be called from any thread.
+		 * @param session The transfer to service.
+		 */
+		public void submit(Session session) {
+			pending.add(session);
+			selector.wakeup();
+		}
+		
+		/**
+		 * Hands back a write whose file is durable, so the loop can send its final acknowledge.  Called from the
+		 * write-behind's I/O thread.
+		 * @param session The transfer.
+		 */
+		public void synced(Session session) {
+			synced.add(session);
+			selector.wakeup();
+		}
+		
+		/**
+		 * Hands back a write whose write-behind queue has room again, so the loop can acknowledge the block it was
+		 * holding.  Called from the write-behind's I/O thread.
+		 * @param session The transfer.
+		 */
+		public void drained(Session session) {
+			drained.add(session);
+			selector.wakeup();
+		}
+		
+		/**
+		 * Stops the loop.  Transfers still in progress are abandoned.
+		 */
+		public void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+		
+		/**
+		 * Ends a session which failed while it was being serviced, so that the other sessions on the loop carry on.
+		 * It's closed and dropped at the next timer check.
+		 * @param session The session.
+		 * @param e What went wrong.
+		 */
+		private void failed(Session session, RuntimeException e) {
+			e.printStackTrace();
+			session.abort();
+		}
+		
+		/**
+		 * Checks every session for an expired retransmission timer, and drops the sessions which have finished.
+		 */
+		private void checkTimers() {
+			long now = System.nanoTime();
+			Iterator<Session> it = sessions.iterator();
+			
+			while (it.hasNext()) {
+				Session session = it.next();
 				
-				if (verbose) {
-					System.out.print("Received ");
-					System.out.println(new String(rPkt.getData()));
-					System.out.print("Opcode ");
-					System.out.println(new Integer(rPkt.getData()[1]));
-					System.out.print("Block ");
- 					System.out.println(0xff & rPkt.getData()[3] + 256 * (0xff & rPkt.getData()[2]));
-					System.out.println();
+				try {
+					if (!session.done && now - session.deadline >= 0) session.timeout();
+				} catch (RuntimeException e) {
+					failed(session, e);
 				}
 				
-				//Response came from an unknown source.
-				if (!rPkt.getAddress().equals(target) || rPkt.getPort() != port) {
-					if (verbose) System.out.println(badTID);
-					
-					byte[] errorData =createErrorMsg((byte) 5, badTID.getBytes());
-					sPkt  = new DatagramPacket (errorData, errorData.length, rPkt.getAddress(), rPkt.getPort());
-					send(sPkt);
+				if (session.done) {
+					try {
+						session.close();
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+					it.remove();
 				}
-				if(!(rPkt.getData()[1] == (byte)0x04 || rPkt.getData()[1] == (byte)0x05 )){
-					if (verbose) System.out.println(error4);
+			}
+			
+			nextCheck = now + tick_ms * 1000000L;
+		}
+		
+		/*
+		 * Until shut down:
+		 *   - Wait for a packet on any session, or until the next timer check is due.
+		 *   - Start any newly submitted sessions, finish any writes whose files are durable, and acknowledge for any
+		 *     writes whose queues have room again.
+		 *   - Hand every readable channel to its session.
+		 *   - Retransmit for any session whose timer has run out.
+		 * A session which throws is ended on its own, the loop and the other sessions on it carry on.
+		 */
+		public void run() {
+			Session session;
+			
+			while (running) {
+				try {
+					selector.select(tick_ms);
 					
-					byte[] errorData =createErrorMsg((byte)4, error4.getBytes());
-					sPkt  = new DatagramPacket(errorData, errorData.length, rPkt.getAddress(), rPkt.getPort());
-					send(sPkt);
-					quit();
-				}
-
-				// While received error packet, handle error.
-				while (rPkt.getData()[1] == (byte)5) {
-					if (rPkt.getData()[3]==(byte)5) {
-						if (verbose) System.out.println("Data sent to incorrect client, attempting to retransfer");
-						send(sPkt);
-
-						while (!success) {
-							readReceive();
-							if (rPkt.getData()[1] != (byte) 0x04 || (rPkt.getData()[3] == block[1] && rPkt.getData()[2] == block[0])) success = true;
-						}
-						
-						if (verbose) {
-		 					System.out.print("Received ");
-		 					System.out.println(new String(rPkt.getData()));
-		 					System.out.print("Opcode ");
-		 					System.out.println(new Integer(rPkt.getData()[1]));
-		 					System.out.println();
-		 				}
-					} else if (rPkt.getData()[3] == (byte)0x04) {
-						// Invalid TFTP operation. Unrecoverable by definition.
-						byte[] errorMsg = new byte[rPkt.getLength()];
-						
-						System.arraycopy(rPkt.getData(), 4, errorMsg, 0, rPkt.getLength() - 5);
-						
-						if (verbose) System.out.println("Error code 4, Invalid TFTP Operation");
-						System.out.println(new String(errorMsg));
+					while ((session = pending.poll()) != null) {
+						sessions.add(session);
 						
-						quit();
+						try {
+							session.open(this);
+						} catch (RuntimeException e) {
+							failed(session, e);
+						}
+					}
+					
+					while ((session = synced.poll()) != null) try {
+						session.synced();
+					} catch (RuntimeException e) {
+						failed(session, e);
 					}
-					if(rPkt.getData()[3] == (byte)3)
-					{
-						byte[] errorMsg = new byte[rPkt.getLength()];
+					
+					while ((session = drained.poll()) != null) try {
+						session.drained();
+					} catch (RuntimeException e) {
+						failed(session, e);
+					}
+					
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
 						
-						System.arraycopy(rPkt.getData(), 4, errorMsg, 0, rPkt.getLength() - 5);
-						if (verbose) System.out.println("Error code 3, disk full");
-						System.out.println(errorMsg);
-						return;
+						if (key.isValid() && key.isReadable()) {
+							session = (Session)key.attachment();
+							
+							try {
+								session.readable(rBuf);
+							} catch (RuntimeException e) {
+								failed(session, e);
+							}
+						}
 					}
+					
+					if (System.nanoTime() - nextCheck >= 0) checkTimers();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			
+			for (Session s : sessions) s.close();
+			
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Session
+	 * A session holds the state of one transfer serviced by an event loop: the window of blocks in flight, the last
+	 * packet sent and how many times it has been retransmitted.  It only ever acts when its loop tells it that a
+	 * packet has arrived or that its timer has run out, so it never blocks.
+	 */
+	private class Session {
+		private boolean type, done, gapAcked;
+		private int blksize, windowsize, rollover;
+		// Reading: the next block to read, the first block not yet acknowledged, the last block sent and the final block.
+		private int next, base, sent, end;
+		// Reading: the first block of the window last sent again because an acknowledge showed a block missing.
+		private int resent;
+		// How far into the file the transfer has got, when the session was opened, and the size announced for a write.
+		private long position, openedAt, tsize;
+		// Where in the file a read starts and stops.  The whole file unless a range was asked for.
+		private long offset, stop;
+		private boolean completed, syncing;
+		// Writing: the write-behind queue was full, so the block received last waits for room, and so does its
+		// acknowledge.  Also whether that block was the final one.
+		private boolean holding, holdingFinal;
+		// Reading: the file's contents, if the cache has them.
+		private ByteBuffer cached;
+		// Writing: the last block received in order, and how many have arrived since it was last acknowledged.
+		private int received, sinceAck;
+		private long deadline;
+		private String filename, key;
+		private InetSocketAddress client;
+		private DatagramChannel channel;
+		private FileChannel file;
+		private WriteBehind writer;
+		private EventLoop loop;
+		private ByteBuffer last;
+		private ByteBuffer[] window;
+		private byte[] oack;
+		private RetransmitTimer timer;
+		private boolean fresh;
+		
+		/**
+		 * Constructor for the Session class
+		 * @param type If true, the transfer is a write request.  Else, it's a read request.
+		 * @param request The request which spawned the transfer.
+		 * @param filename The name of the file requested.
+		 * @param options The options accepted for this transfer.
+		 */
+		public Session(boolean type, DatagramPacket request, String filename, Map<String, String> options) {
+			this.type = type;
+			this.filename = dir + filename.trim();
+			
+			client = new InetSocketAddress(request.getAddress(), request.getPort());
+			key = requestKey(request.getAddress(), request.getPort(), type, filename);
+			
+			blksize = options.containsKey("blksize") ? Integer.parseInt(options.get("blksize")) : defaultBlksize;
+			windowsize = options.containsKey("windowsize") ? Integer.parseInt(options.get("windowsize")) : 1;
+			rollover = options.containsKey("rollover") ? Integer.parseInt(options.get("rollover")) : Server.this.rollover;
+			tsize = options.containsKey("tsize") ? Long.parseLong(options.get("tsize")) : 0;
+			long[] range = options.containsKey("range") ? PacketCodec.range(options.get("range")) : null;
+			offset = range != null ? range[0] : 0;
+			stop = range != null ? range[0] + range[1] : Long.MAX_VALUE;
+			oack = options.isEmpty() ? null : createOACK(options);
+			timer = createTimer(options);
+			
+			last = ByteBuffer.allocateDirect(oack == null ? 4 : Math.max(4, oack.length));
+			
+			next = 1;
+			base = 1;
+			end = -1;
+			position = offset;
+		}
+		
+		/**
+		 * Opens the session's channel and file, and sends the first packet of the transfer.
+		 * @param loop The event loop servicing this session.
+		 */
+		public void open(EventLoop loop) {
+			this.loop = loop;
+			openedAt = System.nanoTime();
+			metrics.sessionStarted();
+			
+			try {
+				channel = DatagramChannel.open();
+				channel.bind(null);
+				channel.configureBlocking(false);
+				channel.register(loop.selector, SelectionKey.OP_READ, this);
+			} catch (IOException e) {
+				e.printStackTrace();
+				done = true;
+				return;
+			}
+			
+			Log.debug("Opening file.");
+			
+			if (type) {
+				try {
+					file = new FileOutputStream(filename).getChannel();
+					writer = new WriteBehind(file, blksize, windowsize, syncPolicy);
+				} catch (FileNotFoundException e) {
+					error((byte)0x02, "You don't have permission to write to " + filename + ".", client);
+					done = true;
+					return;
 				}
 				
-				sizeRead = in.read(data);
+				// Give the file its full size up front, if the client said how big it is.
+				if (tsize > 0) try {
+					writer.preallocate(tsize);
+				} catch (IOException e) {
+					error((byte)0x03, "Disk full or allocation exceeded.", client);
+					done = true;
+					return;
+				}
 				
-				if (sPkt.getLength() == 516 && sizeRead == -1) {
-					data = new byte[4]; data[0] = (byte)0; data[1] = (byte)3; data[2] = block[0]; data[3] = block[1];
-					sPkt = new DatagramPacket(data, 4, target, port);
-					send(sPkt);
+				Log.debug("Starting write.");
+				if (oack != null) sendOACK();
+				else ack(0);
+				answered();
+			} else {
+				// The cached contents, if any, were looked up before the session was submitted.
+				if (cached == null) try {
+					file = new FileInputStream(filename).getChannel();
+				} catch (FileNotFoundException e) {
+					error((byte)0x01, "The file " + filename + " could not be found.", client);
+					done = true;
+					return;
+				} catch (SecurityException e) {
+					error((byte)0x02, "You don't have permission to read " + filename + ".", client);
+					done = true;
+					return;
+				}
+				
+				window = new ByteBuffer[windowsize];
+				for (int i = 0; i < windowsize; i++) window[i] = ByteBuffer.allocateDirect(blksize + 4);
+				
+				Log.debug("Starting read.");
+				fresh = true;
+				if (oack != null) {
+					// The client accepts the OACK by acknowledging block 0, which moves the window on to block 1.
+					base = 0;
+					sendOACK();
+					timer.sent();
+				} else {
+					sendWindow();
 				}
+				answered();
+			}
+		}
+		
+		/**
+		 * Lets the client make the same request again, once the session has sent its first packet.  Only the first
+		 * call has any effect, so a later session for the same request is left alone.
+		 */
+		private void answered() {
+			if (key != null) inFlight.remove(key);
+			key = null;
+		}
+		
+		/**
+		 * Releases the channel and the file.
+		 */
+		public void close() {
+			metrics.sessionEnded(completed, position - offset, System.nanoTime() - openedAt);
+			if (type && cache != null) cache.invalidate(filename);
+			answered();
+			
+			try {
+				if (writer != null) writer.close();
+				if (channel != null) channel.close();
+				if (file != null) file.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		/**
+		 * Sends the last packet built, and restarts the retransmission timer.
+		 */
+		private void send() {
+			last.rewind();
+			
+			try {
+				channel.send(last, client);
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
 			
-			in.close();
-			if (verbose) System.out.println("Finished read.");
+			deadline = System.nanoTime() + timer.getTimeoutNanos();
 		}
 		
 		/**
-		 * Starts the file transfer according to what type of request it was.
+		 * Sends an error packet.  Error packets are never retransmitted.
 		 */
-		public void run() {
-			if (type) {
+		private void error(byte type, String errorMsg, SocketAddress to) {
+			byte[] msg = errorBuffer(errorMsg);
+			
+			Log.debug(errorMsg);
+			
+			try {
+				channel.send(ByteBuffer.wrap(msg, 0, putError(msg, type, errorMsg)), to);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			
+			BufferPool.release(msg);
+		}
+		
+		/**
+		 * Ends the session after something went wrong servicing it, telling the client with error 0 if the channel
+		 * is still open.
+		 */
+		public void abort() {
+			if (!done && channel != null && channel.isOpen()) try {
+				error((byte)0, "Internal server error.", client);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			done = true;
+		}
+		
+		/**
+		 * Builds and sends the acknowledge for the given block.
+		 */
+		private void ack(int block) {
+			last.clear();
+			last.put((byte)0x00).put((byte)0x04).putShort((short)PacketCodec.wireBlock(block, rollover));
+			last.flip();
+			
+			Log.debug("Sending acknowledge for block {}", PacketCodec.wireBlock(block, rollover));
+			send();
+		}
+		
+		/**
+		 * Builds and sends the option acknowledgement.
+		 */
+		private void sendOACK() {
+			last.clear();
+			last.put(oack);
+			last.flip();
+			
+			Log.debug("Sending option acknowledgement.");
+			send();
+		}
+		
+		/**
+		 * Sends every block of the window, reading in the ones which haven't been read yet.  Once the end of the
+		 * file has been reached this builds the empty block that ends a file filling its last block exactly.
+		 * <p>
+		 * Blocks are read by position straight into the direct buffers of the window and sent from there.
+		 */
+		private void sendWindow() {
+			int n;
+			ByteBuffer packet;
+			
+			for (n = base; n < base + windowsize && (end == -1 || n <= end); n++) {
+				packet = window[(n - 1) % windowsize];
+				
+				if (n == next) {
+					packet.clear();
+					packet.put((byte)0x00).put((byte)0x03).putShort((short)PacketCodec.wireBlock(n, rollover));
+					
+					try {
+						position += readBlock(file, cached, packet, position, stop);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					
+					packet.flip();
+					if (packet.limit() - 4 < blksize) end = n;
+					next++;
+				}
+				
+				Log.debug("Sending block {}, {} bytes", PacketCodec.wireBlock(n, rollover), packet.limit() - 4);
+				Log.payload(PacketCodec.wireBlock(n, rollover), packet);
+				
+				packet.rewind();
+				
 				try {
-					write();
+					channel.send(packet, client);
+					metrics.dataSent(packet.limit() - 4);
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
-			} else {
+			}
+			
+			sent = n - 1;
+			deadline = System.nanoTime() + timer.getTimeoutNanos();
+			
+			// Round trips are only timed for windows sent for the first time.
+			if (fresh) timer.sent();
+			else timer.resent();
+		}
+		
+		/**
+		 * Sends the window again from the first unacknowledged block, or the last packet if there is no window yet.
+		 */
+		private void retransmit() {
+			if (!type && base > 0) sendWindow();
+			else send();
+		}
+		
+		/**
+		 * Drains every packet waiting on the channel.
+		 * @param rBuf The event loop's receive buffer.
+		 */
+		public void readable(ByteBuffer rBuf) {
+			SocketAddress from;
+			
+			while (!done) {
+				rBuf.clear();
+				
 				try {
-					read();
+					from = channel.receive(rBuf);
 				} catch (IOException e) {
 					e.printStackTrace();
+					return;
+				}
+				
+				if (from == null) return;
+				
+				rBuf.flip();
+				
+				// The received packet came from an unknown source.
+				if (!from.equals(client)) {
+					error((byte)5, badTID, from);
+					continue;
+				}
+				
+				if (rBuf.remaining() < 4) {
+					error((byte)4, error4, client);
+					done = true;
+					return;
 				}
+				
+				received(rBuf.getShort(0), rBuf.getShort(2) & 0xffff, rBuf);
 			}
 		}
+		
+		/**
+		 * Advances the transfer according to the packet received from the client.
+		 */
+		private void received(short opcode, int number, ByteBuffer rBuf) {
+			if (opcode == 0x05) {
+				if (number == 0x05) {
+					Log.debug("Packet went to incorrect client, attempting to retransfer");
+					retransmit();
+				} else {
+					Log.debug("Received error code {}.  Ending transfer.", number);
+					metrics.errorReceived(number);
+					done = true;
+				}
+			} else if (type && opcode == 0x03) {
+				// The final block is in, and its acknowledge is waiting for the file to be durable.  Or the last block
+				// is waiting for room in the write-behind queue, and the client will send the blocks after it again.
+				if (syncing || holding) return;
+				
+				// A block longer than the block size doesn't belong in the transfer.
+				if (rBuf.limit() > blksize + PacketCodec.HEADER) {
+					error((byte)4, error4, client);
+					done = true;
+					return;
+				}
+				
+				// Work out which block the 16 bit block number refers to, relative to the one expected.
+				number = PacketCodec.dataBlock(received + 1, number, rollover);
+				
+				if (number != received + 1) metrics.duplicateData();
+				
+				if (number == received + 1) {
+					boolean last = rBuf.limit() < blksize + 4;
+					
+					rBuf.position(4);
+					position += rBuf.remaining();
+					metrics.dataReceived(rBuf.remaining());
+					
+					// The event loop mustn't wait for the disk, so a full queue holds back the acknowledge instead.
+					try {
+						holding = !writer.offer(rBuf, () -> loop.drained(this));
+					} catch (IOException e) {
+						error((byte)0x03, "Disk full or allocation exceeded.", client);
+						done = true;
+						return;
+					}
+					
+					received = number;
+					gapAcked = false;
+					timer.acked();
+					deadline = System.nanoTime() + timer.getTimeoutNanos();
+					
+					if (holding) holdingFinal = last;
+					else written(last);
+				} else if (number == received || (number > received && !gapAcked)) {
+					// Either the acknowledge of the window was lost and the window was sent again, or a block went
+					// missing.  Either way the client starts again after the last block received in order.
+					gapAcked = number > received;
+					ack(received);
+					sinceAck = 0;
+				}
+			} else if (!type && opcode == 0x04) {
+				// Work out which of the blocks sent the 16 bit block number refers to.
+				number = PacketCodec.ackedBlock(sent, number, rollover);
+				
+				// Acknowledges for blocks before the window are stale, the timer takes care of lost packets.  So does a
+				// repeated acknowledge of the block before the window, unless it's the first to show a block missing
+				// from a larger window.
+				if (number < base - 1 || number == base - 1 && (windowsize == 1 || resent == base)) {
+					metrics.duplicateAck();
+					return;
+				}
+				
+				if (number == end) {
+					Log.debug("Finished read.");
+					completed = true;
+					done = true;
+				} else {
+					// An acknowledge which doesn't move the window means the same window goes out again.
+					fresh = number >= base;
+					if (fresh) timer.acked();
+					else {
+						resent = base;
+						metrics.duplicateAck();
+						metrics.retransmitted();
+					}
+					base = number + 1;
+					sendWindow();
+				}
+			} else {
+				error((byte)4, error4, client);
+				done = true;
+			}
+		}
+		
+		/**
+		 * Acknowledges a block which has been queued to be written, if it ends the window.  The final acknowledge
+		 * says the whole file has been written, so the write-behind hands the session back to the loop once it's
+		 * durable.
+		 * @param last True if the block is the final one.
+		 */
+		private void written(boolean last) {
+			if (last) {
+				syncing = true;
+				
+				try {
+					writer.finish(() -> loop.synced(this));
+				} catch (IOException e) {
+					error((byte)0x03, "Disk full or allocation exceeded.", client);
+					done = true;
+				}
+			} else if (++sinceAck == windowsize) {
+				ack(received);
+				sinceAck = 0;
+			}
+		}
+		
+		/**
+		 * Carries on with a write now that the block it was holding has been queued.
+		 */
+		public void drained() {
+			if (done) return;
+			
+			holding = false;
+			deadline = System.nanoTime() + timer.getTimeoutNanos();
+			written(holdingFinal);
+		}
+		
+		/**
+		 * Sends the final acknowledge of a write now that its file is durable, or an error if it couldn't be written.
+		 */
+		public void synced() {
+			if (done) return;
+			
+			if (writer.failed()) {
+				error((byte)0x03, "Disk full or allocation exceeded.", client);
+			} else {
+				ack(received);
+				System.out.println("Finished write.");
+				completed = true;
+			}
+			done = true;
+		}
+		
+		/**
+		 * Retransmits, or gives up on a client which has stopped responding.
+		 */
+		public void timeout() {
+			// There's nothing to send while an acknowledge waits for the disk.
+			if (syncing || holding) {
+				deadline = System.nanoTime() + timer.getTimeoutNanos();
+				return;
+			}
+			
+			if (!timer.timedOut()) {
+				System.out.println("Client stopped responding.  Ending transfer of " + filename + ".");
+				done = true;
+				return;
+			}
+			
+			Log.debug("Receive timed out.  Retransmitting.");
+			fresh = false;
+			metrics.retransmitted();
+			retransmit();
+		}
+	}
+	
+	/**
+	 * PlatformExecutor
+	 * Starts a new platform thread for every transfer.
+	 */
+	private static class PlatformExecutor implements Executor {
+		public void execute(Runnable task) {
+			new Thread(task).start();
+		}
 	}
 	
 	public static void main(String[] args) throws IOException {
 		Server server = new Server();
 		
-		while (!server.exit) {
-			server.receive();
-			server.parsePacket();
+		// -listeners <threads> receives requests on that many threads, each with its own socket where possible.
+		// -nio <threads> services transfers on that many event loops instead of a thread per transfer.
+		// -threads virtual runs each transfer on a virtual thread instead of a platform thread.
+		// -maxblksize <bytes> caps the block size negotiated with clients.
+		// -maxwindow <blocks> caps the window size negotiated with clients.
+		// -rollover <0|1> sets the block number after 65535 for clients which don't ask for one.
+		// -log <info|debug|payload|off> sets how much is logged, like toggling verbose mode and payload dumps.
+		// -metrics <port> publishes the metrics over JMX and as a Prometheus page on that loopback port.
+		// -sync <none|close|MB> sets when written files count as durable, see WriteBehind.
+		// -cache <MB> keeps up to that much file data in memory for reads, -offheapcache <MB> keeps it outside the heap.
+		for (int i = 0; i < args.length - 1; i++) {
+			if (args[i].equals("-listeners")) server.setListeners(Integer.parseInt(args[++i]));
+			else if (args[i].equals("-nio")) server.startEventLoops(Integer.parseInt(args[++i]));
+			else if (args[i].equals("-threads") && args[++i].equals("virtual")) server.useVirtualThreads();
+			else if (args[i].equals("-maxblksize")) server.setMaxBlksize(Integer.parseInt(args[++i]));
+			else if (args[i].equals("-maxwindow")) server.setMaxWindowsize(Integer.parseInt(args[++i]));
+			else if (args[i].equals("-rollover")) server.setRollover(Integer.parseInt(args[++i]));
+			else if (args[i].equals("-metrics")) server.publishMetrics(Integer.parseInt(args[++i]));
+			else if (args[i].equals("-sync")) server.setSyncPolicy(args[++i]);
+			else if (args[i].equals("-log")) Log.setLevel(args[++i]);
+			else if (args[i].equals("-cache")) server.useCache(Long.parseLong(args[++i]), false);
+			else if (args[i].equals("-offheapcache")) server.useCache(Long.parseLong(args[++i]), true);
 		}
+		
+		server.serve();
 	}
 }
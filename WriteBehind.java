@@ -0,0 +1,349 @@
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * WriteBehind
+ * The write-behind writes the blocks of a transfer to its file on an I/O thread, so that a block can be acknowledged
+ * without waiting for the disk.
+ * <p>
+ * Blocks are copied into pooled buffers and queued with their position in the file.  The queue holds about a
+ * megabyte, and at least two windows.  If the disk falls that far behind, the transfer waits for room, which holds
+ * back its acknowledges and so slows the sender down.  A transfer which mustn't block offers its blocks instead, and
+ * holds back its acknowledge itself until it's told there is room.  Writers share a pool of I/O threads, but only
+ * one thread at a time writes for a given writer.  A write which fails is reported by the transfer's next call.
+ * <p>
+ * The sync policy decides when the data counts as durable, and so when the final block may be acknowledged:
+ * NONE once every block has been handed to the operating system, CLOSE once the file has also been forced to disk,
+ * or a number of bytes to force the file after every time that many have been written, as well as at the end.
+ * <p>
+ * If the size of the file is known beforehand, the file can be given that size before the first block arrives.
+ */
+public class WriteBehind {
+	public static final long NONE = -1;
+	public static final long CLOSE = 0;
+
+	private static final int queueBytes = 1 << 20;
+
+	private static final ExecutorService disk = Executors.newCachedThreadPool(task -> {
+		Thread thread = new Thread(task, "write-behind");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final FileChannel file;
+	private final long syncEvery;
+	private final ArrayBlockingQueue<Block> queue;
+	// Blocks which have been written, to be used again for later ones.
+	private final ArrayBlockingQueue<Block> spare;
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	// A block offered while the queue was full, and what to run once it has been queued.
+	private final AtomicReference<Block> overflow = new AtomicReference<Block>();
+	private Runnable room;
+	// The position of the next block queued, the bytes written since the file was last forced, and the size given.
+	private long position, sinceSync, allocated;
+	private volatile IOException failure;
+	private volatile boolean closed;
+
+	/**
+	 * @param file The file to write, from its start.  Closed by close().
+	 * @param blksize The block size of the transfer.
+	 * @param windowsize The window size of the transfer.
+	 * @param syncEvery NONE, CLOSE or the number of bytes between syncs.
+	 */
+	public WriteBehind(FileChannel file, int blksize, int windowsize, long syncEvery) {
+		this(file, 0, blksize, windowsize, syncEvery);
+	}
+
+	/**
+	 * @param file The file to write.  Closed by close().
+	 * @param start Where in the file the first block goes, for a transfer of only part of the file.
+	 * @param blksize The block size of the transfer.
+	 * @param windowsize The window size of the transfer.
+	 * @param syncEvery NONE, CLOSE or the number of bytes between syncs.
+	 */
+	public WriteBehind(FileChannel file, long start, int blksize, int windowsize, long syncEvery) {
+		this.file = file;
+		this.syncEvery = syncEvery;
+
+		position = start;
+		queue = new ArrayBlockingQueue<Block>(Math.max(2 * windowsize, queueBytes / blksize));
+		spare = new ArrayBlockingQueue<Block>(queue.remainingCapacity() + 1);
+	}
+
+	/**
+	 * Reads a sync policy as given on the command line.
+	 * @param policy none, close or a number of megabytes.
+	 * @return NONE, CLOSE or the number of bytes between syncs.
+	 */
+	public static long policy(String policy) {
+		if (policy.equalsIgnoreCase("none")) return NONE;
+		if (policy.equalsIgnoreCase("close")) return CLOSE;
+		return Math.max(1, Long.parseLong(policy.trim())) * 1024 * 1024;
+	}
+
+	/**
+	 * Gives the file its final size before any block is written, rather than growing it a block at a time.  If
+	 * fewer bytes are written, the file is cut back to them when it's finished.
+	 * <p>
+	 * Java can't reserve disk space, so on most file systems the file is sparse until its blocks are written.
+	 * Callers should check that there is room for it first.
+	 * @param size The size of the file.
+	 * @throws IOException If the file couldn't be extended.
+	 */
+	public void preallocate(long size) throws IOException {
+		if (size <= 0) return;
+
+		file.write(ByteBuffer.allocate(1), size - 1);
+		allocated = size;
+	}
+
+	/**
+	 * Queues a block to be written after the one before it.  Waits if the queue is full.
+	 * @throws IOException If an earlier block could not be written.
+	 */
+	public void write(byte[] buf, int offset, int length) throws IOException {
+		byte[] data;
+
+		check();
+		if (length == 0) return;
+
+		data = BufferPool.acquire(length);
+		System.arraycopy(buf, offset, data, 0, length);
+		enqueue(block(data, length, position, null));
+		position += length;
+	}
+
+	/**
+	 * Queues the bytes remaining in the buffer, like write(byte[], int, int).  The buffer is read to its limit.
+	 */
+	public void write(ByteBuffer src) throws IOException {
+		int length = src.remaining();
+		byte[] data;
+
+		check();
+		if (length == 0) return;
+
+		data = BufferPool.acquire(length);
+		src.get(data, 0, length);
+		enqueue(block(data, length, position, null));
+		position += length;
+	}
+
+	/**
+	 * Queues the bytes remaining in the buffer like write(ByteBuffer), but never waits.  If the queue is full the
+	 * block is kept aside, and queued on the I/O thread once there is room.  Nothing more may be written until then.
+	 * <p>
+	 * A slot is always left free for finish(Runnable), so that it doesn't have to wait either.
+	 * @param room Run on the I/O thread once a block kept aside has been queued.
+	 * @return True if the block was queued, false if it was kept aside.
+	 * @throws IOException If an earlier block could not be written.
+	 */
+	public boolean offer(ByteBuffer src, Runnable room) throws IOException {
+		int length = src.remaining();
+		byte[] data;
+		Block block;
+
+		check();
+		if (length == 0) return true;
+
+		data = BufferPool.acquire(length);
+		src.get(data, 0, length);
+		block = block(data, length, position, null);
+		position += length;
+
+		if (queue.remainingCapacity() > 1) {
+			enqueue(block);
+			return true;
+		}
+
+		this.room = room;
+		overflow.set(block);
+
+		// The I/O thread may have emptied the queue in the meantime, and then it won't look at the block kept aside.
+		if (queue.remainingCapacity() > 1 && overflow.compareAndSet(block, null)) {
+			enqueue(block);
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Has every block queued so far written out and synced as the policy says, then runs the callback on the I/O
+	 * thread.  Use failed() in the callback to find out whether it worked.
+	 * @param then Run once the data is durable, or has failed to be written.
+	 */
+	public void finish(Runnable then) throws IOException {
+		enqueue(block(null, 0, position, then));
+	}
+
+	/**
+	 * Waits until every block queued so far is written out and synced as the policy says.
+	 * @throws IOException If any block could not be written or synced.
+	 */
+	public void finish() throws IOException {
+		CountDownLatch durable = new CountDownLatch(1);
+
+		finish(durable::countDown);
+
+		try {
+			durable.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+
+		check();
+	}
+
+	/**
+	 * @return True if a block could not be written or synced.
+	 */
+	public boolean failed() {
+		return failure != null;
+	}
+
+	/**
+	 * Closes the file.  Blocks still queued are dropped, so call finish() first to keep them.
+	 */
+	public void close() {
+		closed = true;
+
+		try {
+			file.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void check() throws IOException {
+		if (failure != null) throw failure;
+	}
+
+	/**
+	 * Takes a block to fill in from the ones already written, or makes a new one.
+	 */
+	private Block block(byte[] data, int length, long position, Runnable then) {
+		Block block = spare.poll();
+
+		if (block == null) block = new Block();
+		block.data = data;
+		block.length = length;
+		block.position = position;
+		block.then = then;
+		return block;
+	}
+
+	private void enqueue(Block block) throws IOException {
+		try {
+			queue.put(block);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+
+		if (scheduled.compareAndSet(false, true)) disk.execute(this::drain);
+	}
+
+	/**
+	 * Runs on an I/O thread.  Writes every block in the queue, then lets go of the writer unless more arrived.
+	 */
+	private void drain() {
+		Block block, waiting;
+		Runnable then;
+
+		do {
+			while ((block = queue.poll()) != null) {
+				// There's room now for a block which was kept aside.
+				if (overflow.get() != null && (waiting = overflow.getAndSet(null)) != null) {
+					queue.offer(waiting);
+					room.run();
+				}
+
+				if (block.then != null) {
+					then = block.then;
+					trim(block.position);
+					sync(true);
+					recycle(block);
+					then.run();
+					continue;
+				}
+
+				if (failure == null && !closed) try {
+					ByteBuffer src = ByteBuffer.wrap(block.data, 0, block.length);
+					long at = block.position;
+
+					while (src.hasRemaining()) at += file.write(src, at);
+					sinceSync += block.length;
+					if (syncEvery > 0 && sinceSync >= syncEvery) sync(false);
+				} catch (IOException e) {
+					failure = e;
+				}
+
+				BufferPool.release(block.data);
+				recycle(block);
+			}
+
+			scheduled.set(false);
+		} while (!queue.isEmpty() && scheduled.compareAndSet(false, true));
+	}
+
+	/**
+	 * Keeps a block which has been dealt with, so a later one can use it.
+	 */
+	private void recycle(Block block) {
+		block.data = null;
+		block.then = null;
+		spare.offer(block);
+	}
+
+	/**
+	 * Cuts a preallocated file back to the bytes written.
+	 * @param length The bytes queued before the transfer finished.
+	 */
+	private void trim(long length) {
+		if (failure != null || closed || allocated <= length) return;
+
+		try {
+			file.truncate(length);
+		} catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	/**
+	 * Forces the file to disk if the policy asks for it.
+	 * @param last True at the end of the transfer, when the file's size must be made durable too.
+	 */
+	private void sync(boolean last) {
+		if (failure != null || closed || syncEvery == NONE || (!last && sinceSync == 0)) return;
+
+		try {
+			file.force(last);
+			sinceSync = 0;
+		} catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	/**
+	 * Block
+	 * A block waiting to be written, or a request to be told once everything before it has been.  Blocks are used
+	 * again once they have been dealt with.
+	 */
+	private static class Block {
+		private byte[] data;
+		private int length;
+		private long position;
+		private Runnable then;
+	}
+}
@@ -0,0 +1,54 @@
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * BlockBenchmark
+ * Measures the work done for every block: writing DATA and ACK headers, reading an ACK back, and working out which
+ * block a 16 bit block number refers to.  None of these should allocate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BlockBenchmark {
+	private final byte[] data = new byte[516];
+	private final byte[] ack = new byte[4];
+	private int block;
+
+	@Benchmark
+	public int dataHeader() {
+		return PacketCodec.putData(data, ++block);
+	}
+
+	@Benchmark
+	public int ackRoundTrip() {
+		PacketCodec.putAck(ack, ++block);
+		return PacketCodec.opcode(ack) + PacketCodec.block(ack);
+	}
+
+	@Benchmark
+	public int ackedBlock() {
+		// An acknowledge a few blocks back in the window, past the 16 bit rollover as the count grows.
+		block++;
+		return PacketCodec.ackedBlock(block, (block - 3) & 0xffff);
+	}
+
+	@Benchmark
+	public int dataBlock() {
+		// A block arriving one ahead of the one expected, as after a loss.
+		block++;
+		return PacketCodec.dataBlock(block, (block + 1) & 0xffff);
+	}
+}
@@ -0,0 +1,87 @@
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * RequestBenchmark
+ * Measures the work done once per request: validating an RRQ on the server, building one on the client, and
+ * building the error packet the server answers a missing file with.
+ * <p>
+ * Filenames run from a short 8.3 name to a long path, in both modes and in mixed case, with and without options.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestBenchmark {
+	@Param({"12", "40", "200"})
+	public int filenameLength;
+
+	@Param({"octet", "netascii", "NetAscii"})
+	public String mode;
+
+	@Param({"false", "true"})
+	public boolean options;
+
+	private Server server;
+	private Client client;
+	private DatagramPacket request;
+	private String filename;
+	private String errorText;
+	private byte[] errorBuf;
+
+	@Setup
+	public void setup() {
+		StringBuilder name = new StringBuilder("pxe/");
+		byte[] buf = new byte[516];
+		int length;
+
+		while (name.length() < filenameLength - 4) name.append((char)('a' + name.length() % 26));
+		name.append(".img");
+		filename = name.substring(name.length() - filenameLength);
+
+		length = PacketCodec.putRequest(buf, PacketCodec.RRQ, filename, mode);
+		if (options) {
+			length = PacketCodec.putOption(buf, length, "blksize", "1428");
+			length = PacketCodec.putOption(buf, length, "windowsize", "16");
+		}
+
+		server = new Server(0);
+		client = new Client(InetAddress.getLoopbackAddress(), 69);
+		if (options) client.requestOptions(1428, 16, 0);
+
+		request = new DatagramPacket(buf, length, InetAddress.getLoopbackAddress(), 50000);
+		errorText = "The file " + filename + " could not be found.";
+		errorBuf = new byte[PacketCodec.HEADER + errorText.length() + 1];
+	}
+
+	@Benchmark
+	public Object parseRequest() {
+		return server.parseRequest(request);
+	}
+
+	@Benchmark
+	public byte[] buildRQ() {
+		return client.buildRQ(filename, (byte)0x01);
+	}
+
+	@Benchmark
+	public int putError() {
+		return server.putError(errorBuf, (byte)0x01, errorText);
+	}
+}
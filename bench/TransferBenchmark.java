@@ -0,0 +1,166 @@
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * TransferBenchmark
+ * Runs a Server and a Client in the same JVM over loopback, and times whole transfers between them.
+ * <p>
+ * For every payload size, files of that size are read (RRQ) and written (WRQ) a number of times after a few warmup
+ * transfers.  Each series prints one line of JSON with the throughput, the blocks per second, how many windows had
+ * to be sent again, and the median and 99th percentile time per transfer.  Every transfer is checked against the
+ * original payload, and a mismatch is counted as a failure.
+ * <p>
+ * Arguments:
+ * -sizes <bytes,...> payload sizes, default 1000,1024,65536,1048576 (multiples of 512 end with an empty block)
+ * -runs <count> timed transfers per size and direction, default 20
+ * -warmup <count> untimed transfers before them, default 3
+ * -blksize <bytes> and -windowsize <blocks> options to request, default 512 and 1
+ * -nio <threads> and -cache <MB> are passed on to the server
+ * -sync <none|close|MB> is when written files count as durable, for both the server and the client, default none
+ */
+public class TransferBenchmark {
+	private Server server;
+	private Client client;
+	private Path root, serverDir, clientDir;
+	private int blksize, windowsize, runs, warmup;
+	private PrintStream results;
+
+	public TransferBenchmark(int blksize, int windowsize, int runs, int warmup) {
+		this.blksize = blksize;
+		this.windowsize = windowsize;
+		this.runs = runs;
+		this.warmup = warmup;
+	}
+
+	/**
+	 * Starts the server on a free loopback port and a client pointed at it, each with a directory of its own.
+	 * The transfers' own console output is silenced, results go to the original standard output.
+	 */
+	public void start(int loops, long cacheMegabytes, String sync) throws IOException {
+		root = Files.createTempDirectory("tftpbench");
+
+		serverDir = Files.createDirectory(root.resolve("server"));
+		clientDir = Files.createDirectory(root.resolve("client"));
+
+		results = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		server = new Server(0);
+		server.setDir(serverDir + "/");
+		if (loops > 0) server.startEventLoops(loops);
+		if (cacheMegabytes > 0) server.useCache(cacheMegabytes, false);
+		server.setSyncPolicy(sync);
+		new Thread(server::serve).start();
+
+		client = new Client(InetAddress.getLoopbackAddress(), server.getPort());
+		client.setDir(clientDir + "/");
+		client.requestOptions(blksize, windowsize, 0);
+		client.setSyncPolicy(WriteBehind.policy(sync));
+	}
+
+	/**
+	 * Reads and writes a payload of the given size, and prints a result line for each direction.
+	 */
+	public void run(int size) throws IOException {
+		byte[] payload = new byte[size];
+		new Random(size).nextBytes(payload);
+
+		Files.write(serverDir.resolve("rrq.bin"), payload);
+		Files.write(clientDir.resolve("wrq.bin"), payload);
+
+		series("RRQ", payload, serverDir.resolve("rrq.bin"), clientDir.resolve("rrq.bin"));
+		series("WRQ", payload, clientDir.resolve("wrq.bin"), serverDir.resolve("wrq.bin"));
+	}
+
+	/**
+	 * Runs the warmup and timed transfers of one direction.
+	 * @param op RRQ or WRQ.
+	 * @param source The file sent.
+	 * @param copy Where the file arrives.
+	 */
+	private void series(String op, byte[] payload, Path source, Path copy) throws IOException {
+		long[] times = new long[runs];
+		long retransmits = 0, total = 0, start;
+		int failures = 0;
+
+		for (int i = -warmup; i < runs; i++) {
+			long before = server.getRetransmits() + client.getRetransmits();
+
+			Files.deleteIfExists(copy);
+			start = System.nanoTime();
+			if (op.equals("RRQ")) client.read("rrq.bin");
+			else client.write("wrq.bin");
+			if (i < 0) continue;
+
+			times[i] = System.nanoTime() - start;
+			total += times[i];
+			retransmits += server.getRetransmits() + client.getRetransmits() - before;
+			if (!Arrays.equals(payload, Files.readAllBytes(copy))) failures++;
+		}
+
+		Arrays.sort(times);
+
+		double seconds = total / 1e9;
+		long blocks = (long)runs * (payload.length / blksize + 1);
+
+		results.printf("{\"op\":\"%s\",\"size\":%d,\"blksize\":%d,\"windowsize\":%d,\"runs\":%d,"
+				+ "\"mbPerSec\":%.3f,\"blocksPerSec\":%.1f,\"retransmits\":%d,\"p50Ms\":%.3f,\"p99Ms\":%.3f,"
+				+ "\"failures\":%d}%n",
+				op, payload.length, blksize, windowsize, runs,
+				(double)runs * payload.length / seconds / 1e6, blocks / seconds, retransmits,
+				percentile(times, 0.50) / 1e6, percentile(times, 0.99) / 1e6, failures);
+	}
+
+	/**
+	 * Stops the server and deletes the payloads.
+	 */
+	public void stop() throws IOException {
+		server.quit();
+
+		for (Path dir : new Path[] {serverDir, clientDir}) {
+			for (String name : new String[] {"rrq.bin", "wrq.bin"}) Files.deleteIfExists(dir.resolve(name));
+			Files.delete(dir);
+		}
+		Files.delete(root);
+	}
+
+	/**
+	 * @param sorted Times in ascending order.
+	 * @param q The fraction of times which are at most the percentile.
+	 */
+	private static long percentile(long[] sorted, double q) {
+		return sorted[Math.max(0, (int)Math.ceil(q * sorted.length) - 1)];
+	}
+
+	public static void main(String[] args) throws IOException {
+		String sizes = "1000,1024,65536,1048576", sync = "none";
+		int blksize = 512, windowsize = 1, runs = 20, warmup = 3, loops = 0;
+		long cache = 0;
+
+		for (int i = 0; i < args.length - 1; i++) {
+			if (args[i].equals("-sizes")) sizes = args[++i];
+			else if (args[i].equals("-runs")) runs = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-warmup")) warmup = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-blksize")) blksize = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-windowsize")) windowsize = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-nio")) loops = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-cache")) cache = Long.parseLong(args[++i]);
+			else if (args[i].equals("-sync")) sync = args[++i];
+		}
+
+		TransferBenchmark bench = new TransferBenchmark(blksize, windowsize, Math.max(1, runs), warmup);
+		bench.start(loops, cache, sync);
+
+		for (String size : sizes.split(",")) bench.run(Integer.parseInt(size.trim()));
+
+		bench.stop();
+		System.exit(0);
+	}
+}